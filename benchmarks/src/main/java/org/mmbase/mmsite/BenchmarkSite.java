@@ -0,0 +1,152 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.mock.MockCloudContext;
+import org.mmbase.framework.basic.BasicFramework;
+import org.mmbase.util.ResourceLoader;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * A site in memory to run the benchmarks against: the builders of MMSite in the mock cloud of the
+ * MMBase bridge, filled by the {@link SiteGenerator}. The pages of all portals have the same paths,
+ * so pages are found by path as well as by portal. The converters are created as they are by the
+ * framework, the caches of MMSite are cleared.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+final class BenchmarkSite {
+    private static final Logger log = Logging.getLoggerInstance(BenchmarkSite.class);
+
+    static {
+        // ContextProvider.getDefaultCloudContext(), used by MMSite, answers the mock cloud
+        System.setProperty("mmbase.defaultcloudcontext", "mock:local");
+    }
+
+    final Cloud cloud;
+    final Node[] portals;
+    final Node[] pages;
+    final Node[] articles;
+    final String[] paths;
+    final List<Locale> locales = new ArrayList<>();
+    final SiteUrlConverter siteConverter;
+    final ArticlesUrlConverter articlesConverter;
+
+    /**
+     * @param generator    Generates the site, see {@link SiteGenerator}
+     */
+    BenchmarkSite(SiteGenerator generator) throws Exception {
+        long start = System.currentTimeMillis();
+        MockCloudContext context = MockCloudContext.getInstance();
+        context.clear();
+        context.addCore();
+        context.addNodeManagers(ResourceLoader.getConfigurationRoot().getChildResourceLoader("builders/mmsite"));
+        cloud = context.getCloud("mmbase");
+
+        StringBuilder languages = new StringBuilder("en");
+        locales.add(new Locale("en"));
+        for (String language : generator.getLanguages()) {
+            languages.append(',').append(language);
+            locales.add(new Locale(language));
+        }
+        LocaleUtil.getInstance().setDisplayLocales(languages.toString());
+        LocaleUtil.getInstance().setAcceptedLocales(languages.toString());
+
+        Map<Integer, Node> created = generator.toCloud(cloud);
+        portals = generator.getNodes(created, "pools").toArray(new Node[0]);
+        pages = generator.getNodes(created, "pages").toArray(new Node[0]);
+        articles = generator.getNodes(created, "articles").toArray(new Node[0]);
+        paths = generator.getPaths().toArray(new String[0]);
+
+        clearCaches();
+        BasicFramework framework = new BasicFramework();
+        siteConverter = new SiteUrlConverter(framework);
+        siteConverter.setExcludedPaths("mmbase,mmexamples");
+        articlesConverter = new ArticlesUrlConverter(framework);
+        log.service("Created site of " + portals.length + " portals with " + paths.length + " pages each, " + articles.length
+                    + " articles in " + locales + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Forgets the indexes and caches of MMSite, so they are read again.
+     */
+    static void clearCaches() {
+        PageIndex.getInstance().clear();
+        TemplateCache.getInstance().clear();
+        PortalIndex.getInstance().clear();
+        ArticleIndex.getInstance().clear();
+        NiceUrlCache.getInstance().clear();
+        TranslationCache.getInstance().clear();
+    }
+
+    /**
+     * A request for a path in a portal, supporting just what MMSite and the framework use of it.
+     *
+     * @param  path    The path of the request, f.e. '/section1/group0/page1.html'
+     * @param  portal  Portal node or <code>null</code>
+     * @param  locale  Accepted language of the client
+     */
+    static HttpServletRequest request(String path, Node portal, Locale locale) {
+        Map<String, Object> attributes = new HashMap<>();
+        if (portal != null) {
+            attributes.put("portal", portal);
+        }
+        return (HttpServletRequest) Proxy.newProxyInstance(BenchmarkSite.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "getAttribute":     return attributes.get((String) args[0]);
+            case "setAttribute":     attributes.put((String) args[0], args[1]); return null;
+            case "removeAttribute":  attributes.remove((String) args[0]); return null;
+            case "getAttributeNames": return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+            case "getRequestURI":    return path;
+            case "getServletPath":   return path;
+            case "getContextPath":   return "";
+            case "getPathInfo":      return null;
+            case "getQueryString":   return null;
+            case "getServerName":    return "localhost";
+            case "getScheme":        return "http";
+            case "getMethod":        return "GET";
+            case "getLocale":        return locale;
+            case "getLocales":       return Collections.enumeration(Collections.singletonList(locale));
+            case "getHeader":        return "Accept-Language".equals(args[0]) ? locale.toString() : null;
+            case "getParameter":     return null;
+            case "getParameterMap":  return Collections.emptyMap();
+            case "getSession":       return null;
+            case "hashCode":         return System.identityHashCode(proxy);
+            case "equals":           return proxy == args[0];
+            case "toString":         return "request " + path;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+}
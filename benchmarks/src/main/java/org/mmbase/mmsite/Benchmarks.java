@@ -0,0 +1,56 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+
+/**
+ * Runs the benchmarks like the main class of JMH, taking the same arguments, but always with the
+ * 'gc' profiler so the allocation rate per operation is reported along with throughput and latency.
+ * F.e. <code>java -jar target/benchmarks.jar UrlConverterBenchmark -p pages=100000 -rf json</code>.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Options options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.mmbase.bridge.NodeList;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * What happens to the path of every request besides the conversion itself: finding the language
+ * in it with {@link LocaleUtil}, appending the language to a url, and the crumb path of a page with
+ * {@link UrlUtils#listNodes2Root}.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathBenchmark {
+
+    @Benchmark
+    public Locale setLanguageExplicit(SiteState state, SiteState.Cursor cursor) {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.paths.length);
+        Locale locale = site.locales.get(i % site.locales.size());
+        String path = site.paths[i].equals("/") ? "/index" : site.paths[i];
+        HttpServletRequest request = BenchmarkSite.request(path + "." + locale, null, locale);
+        LocaleUtil.getInstance().setLanguage(RequestPath.get(request), request);
+        return (Locale) request.getAttribute(LocaleUtil.LOCALE_KEY);
+    }
+
+    @Benchmark
+    public Locale setLanguageInferred(SiteState state, SiteState.Cursor cursor) {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.paths.length);
+        HttpServletRequest request = BenchmarkSite.request(site.paths[i], null, site.locales.get(i % site.locales.size()));
+        LocaleUtil.getInstance().setLanguage(RequestPath.get(request), request);
+        return (Locale) request.getAttribute(LocaleUtil.LOCALE_KEY);
+    }
+
+    @Benchmark
+    public StringBuilder appendLanguage(SiteState state, SiteState.Cursor cursor) {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.paths.length);
+        StringBuilder b = new StringBuilder(site.paths[i]);
+        LocaleUtil.getInstance().appendLanguage(b, site.locales.get(i % site.locales.size()).toString());
+        return b;
+    }
+
+    @Benchmark
+    public NodeList listNodes2Root(SiteState state, SiteState.Cursor cursor) {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.pages.length);
+        int portal = i * site.portals.length / site.pages.length;
+        HttpServletRequest request = BenchmarkSite.request(site.paths[i % site.paths.length], site.portals[portal], Locale.ENGLISH);
+        return UrlUtils.listNodes2Root(request, site.pages[i]);
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/**
+ * Checks {@link PurgeClient} against a stand-in proxy on a local port, which answers the requests
+ * it gets in the ways a proxy can: with a body of a known length, a chunked body, '404 Not Found',
+ * '405' closing the connection, and an http 1.0 body up to the end of the connection. One of the
+ * urls has characters that must be percent-encoded and one has a line break, which must not be sent.
+ * It also checks that a chunked body which ends too soon gives an EOFException. It fails (with exit
+ * code 1) when the requests received or the number of urls counted as purged are not those expected:
+ * <pre>
+ *   java -cp target/benchmarks.jar org.mmbase.mmsite.PurgeClientCheck
+ * </pre>
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class PurgeClientCheck {
+
+    private static final String[] RESPONSES = {
+        "HTTP/1.1 200 Purged\r\nContent-Length: 7\r\n\r\nPurged.",
+        "HTTP/1.1 200 Purged\r\nTransfer-Encoding: chunked\r\n\r\n4;x=y\r\nPurg\r\n3\r\ned.\r\n0\r\nX-Trailer: 1\r\n\r\n",
+        "HTTP/1.1 404 Not in cache\r\nContent-Length: 0\r\n\r\n",
+        "HTTP/1.1 405 Not allowed\r\nConnection: close\r\nContent-Length: 11\r\n\r\nNot allowed",
+        "HTTP/1.0 200 Purged\r\n\r\nPurged, until the end."
+    };
+
+    public static void main(String[] args) throws Exception {
+        List<String> urls = Arrays.asList("/mmsite/news", "/mmsite/news.html", "/mmsite/caf\u00e9 1.nl",
+                                          "/mmsite/news\r\nX-Injected: 1", "/mmsite/articles/1/title",
+                                          "/mmsite/articles/1/title.html");
+        List<String> sent = Arrays.asList("/mmsite/news", "/mmsite/news.html", "/mmsite/caf%C3%A9%201.nl",
+                                          "/mmsite/articles/1/title", "/mmsite/articles/1/title.html");
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread proxy = new Thread(() -> serve(server, received), "stand-in proxy");
+            proxy.setDaemon(true);
+            proxy.start();
+
+            PurgeClient client = new PurgeClient("PURGE", "www.example.org", 5000);
+            int ok = client.send(InetSocketAddress.createUnresolved("localhost", server.getLocalPort()), urls);
+
+            List<String> expected = new ArrayList<>();
+            for (String url : sent) {
+                expected.add("PURGE " + url + " HTTP/1.1|Host: www.example.org");
+            }
+            boolean failed = false;
+            if (! expected.equals(received)) {
+                System.err.println("Expected requests " + expected + " but received " + received);
+                failed = true;
+            }
+            if (ok != 4) {
+                System.err.println("Expected 4 urls purged (the 405 is not) but got " + ok);
+                failed = true;
+            }
+            try {
+                PurgeClient.Response.read(new ByteArrayInputStream(
+                    "HTTP/1.1 200 Purged\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nPurge\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+                System.err.println("Expected an EOFException for a chunked body that ends too soon");
+                failed = true;
+            } catch (EOFException eofe) {
+                // expected
+            }
+            if (failed) {
+                System.exit(1);
+            }
+            System.out.println("Sent " + sent.size() + " of " + urls.size() + " urls, " + ok + " purged: " + received);
+        }
+    }
+
+    /**
+     * Accepts connections and answers each request with the next response, until there are no more.
+     */
+    private static void serve(ServerSocket server, List<String> received) {
+        int next = 0;
+        try {
+            while (next < RESPONSES.length) {
+                try (Socket socket = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    OutputStream out = socket.getOutputStream();
+                    String requestLine;
+                    while (next < RESPONSES.length && (requestLine = in.readLine()) != null) {
+                        String host = null;
+                        String line;
+                        while ((line = in.readLine()) != null && ! line.isEmpty()) {
+                            if (line.toLowerCase().startsWith("host:")) {
+                                host = line;
+                            }
+                        }
+                        received.add(requestLine + "|" + host);
+                        String response = RESPONSES[next++];
+                        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                        out.flush();
+                        if (response.contains("Connection: close") || response.startsWith("HTTP/1.0")) {
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Stand-in proxy: " + ioe);
+        }
+    }
+
+}
@@ -0,0 +1,524 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Generates a site of any size, to test and measure MMSite with more than the few nodes of the
+ * application 'MMSite'. Every portal ('pools') gets the same tree of pages, so the paths overlap,
+ * with a configurable number of pages and depth. Articles are related to random pages with
+ * 'posrel', and have comments and translations in several languages.
+ * The same seed always gives the same site, so results of different runs can be compared. The site
+ * can be created in a cloud, f.e. the mock cloud used by the benchmarks, or written as an MMBase
+ * application, to be deployed like any other:
+ * <pre>
+ *   java -cp target/benchmarks.jar org.mmbase.mmsite.SiteGenerator -pages 100000 -articles 500000 -out /tmp/apps
+ * </pre>
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class SiteGenerator {
+    private static final Logger log = Logging.getLoggerInstance(SiteGenerator.class);
+
+    private static final String[] WORDS = {
+        "news", "about", "contact", "archive", "events", "projects", "products", "services", "people",
+        "blog", "press", "support", "downloads", "jobs", "partners", "history", "agenda", "media",
+        "research", "education", "culture", "sports", "science", "travel", "music", "nature"
+    };
+    /* 2009-04-17, the date of the application 'MMSite', so the dates do not depend on when it runs */
+    private static final long EPOCH = 1239919200L;
+
+    /**
+     * A value of a node field which is another generated node.
+     */
+    static final class Ref {
+        final int number;
+        Ref(int number) {
+            this.number = number;
+        }
+        @Override
+        public String toString() {
+            return String.valueOf(number);
+        }
+    }
+
+    /**
+     * A generated node, with a number of its own which is the number it gets in the application.
+     */
+    static final class Item {
+        final int number;
+        final String builder;
+        final Map<String, Object> fields = new LinkedHashMap<>();
+        String alias;
+
+        Item(int number, String builder) {
+            this.number = number;
+            this.builder = builder;
+        }
+    }
+
+    /**
+     * A generated relation.
+     */
+    static final class Relation {
+        final int number;
+        final String builder;
+        final String role;
+        final int source;
+        final int destination;
+        final int pos;
+
+        Relation(int number, String builder, String role, int source, int destination, int pos) {
+            this.number = number;
+            this.builder = builder;
+            this.role = role;
+            this.source = source;
+            this.destination = destination;
+            this.pos = pos;
+        }
+    }
+
+    private long seed = 1;
+    private int portals = 3;
+    private int pages = 1000;
+    private int depth = 3;
+    private int articles = 10000;
+    private int comments = 3;
+    private List<String> languages = Arrays.asList("nl", "de");
+    private int number = 1000;
+
+    private final List<Item> items = new ArrayList<>();
+    private final List<Relation> relations = new ArrayList<>();
+    private final List<String> paths = new ArrayList<>();
+    private final List<Item> portalItems = new ArrayList<>();
+    private final List<Item> pageItems = new ArrayList<>();
+    private final List<Item> articleItems = new ArrayList<>();
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    public void setPortals(int portals) {
+        this.portals = Math.max(1, portals);
+    }
+    /**
+     * @param pages Number of pages of each portal
+     */
+    public void setPages(int pages) {
+        this.pages = Math.max(1, pages);
+    }
+    /**
+     * @param depth Levels of pages below the home page
+     */
+    public void setDepth(int depth) {
+        this.depth = Math.max(1, depth);
+    }
+    public void setArticles(int articles) {
+        this.articles = Math.max(0, articles);
+    }
+    /**
+     * @param comments Maximum number of comments of an article, the number is random up to this
+     */
+    public void setComments(int comments) {
+        this.comments = Math.max(0, comments);
+    }
+    /**
+     * @param languages Comma separated languages the articles are translated in, besides english
+     */
+    public void setLanguages(String languages) {
+        List<String> list = new ArrayList<>();
+        for (String l : languages.split(",")) {
+            if (! l.trim().isEmpty()) {
+                list.add(l.trim());
+            }
+        }
+        this.languages = list;
+    }
+
+    public List<String> getLanguages() {
+        return Collections.unmodifiableList(languages);
+    }
+
+    /**
+     * @return The paths of the pages, which are the same in every portal
+     */
+    public List<String> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Generates the site, again from the start when it already was.
+     */
+    public synchronized void generate() {
+        items.clear();
+        relations.clear();
+        paths.clear();
+        portalItems.clear();
+        pageItems.clear();
+        articleItems.clear();
+        number = 1000;
+        Random random = new Random(seed);
+
+        Item template = item("templates");
+        template.fields.put("title", "Page");
+        template.fields.put("description", "Template of generated pages");
+        template.fields.put("url", "/mmsite/page.jspx");
+        template.fields.put("mimetype", "text/html");
+
+        generatePaths(random);
+
+        for (int p = 0; p < portals; p++) {
+            Item portal = item("pools");
+            portal.fields.put("name", "Portal " + p);
+            portal.fields.put("description", "");
+            portal.alias = "pool_generated_" + p;
+            portalItems.add(portal);
+            relation("insrel", "related", portal, template, -1);
+
+            Map<String, Item> byPath = new HashMap<>();
+            for (String path : paths) {
+                Item page = item("pages");
+                String name = path.equals("/") ? "home" : path.substring(path.lastIndexOf('/') + 1);
+                page.fields.put("title", Character.toUpperCase(name.charAt(0)) + name.substring(1).replace('-', ' '));
+                page.fields.put("description", sentence(random, 8));
+                page.fields.put("template", new Ref(template.number));
+                page.fields.put("path", path);
+                byPath.put(path, page);
+                pageItems.add(page);
+
+                if (path.equals("/")) {
+                    relation("posrel", "posrel", portal, page, 0);
+                } else {
+                    String parent = path.substring(0, path.lastIndexOf('/'));
+                    if (parent.isEmpty()) {
+                        // sections belong to the portal
+                        relation("posrel", "posrel", portal, page, byPath.size());
+                    } else {
+                        relation("posrel", "posrel", byPath.get(parent), page, byPath.size());
+                    }
+                }
+            }
+        }
+
+        for (int a = 0; a < articles; a++) {
+            Item article = item("articles");
+            long created = EPOCH + random.nextInt(3 * 365 * 24 * 3600);
+            article.fields.put("title", capitalize(sentence(random, 3 + random.nextInt(5))));
+            article.fields.put("subtitle", "");
+            article.fields.put("intro", sentence(random, 20));
+            article.fields.put("body", "<p>" + sentence(random, 60) + "</p>");
+            article.fields.put("author", "Author " + random.nextInt(100));
+            article.fields.put("show", random.nextInt(20) != 0);
+            article.fields.put("online", created);
+            article.fields.put("created", created);
+            article.fields.put("lastmodified", created + random.nextInt(30 * 24 * 3600));
+            articleItems.add(article);
+            relation("posrel", "posrel", pageItems.get(random.nextInt(pageItems.size())), article, a);
+
+            for (String language : languages) {
+                if (random.nextInt(10) < 8) {
+                    Item translation = item("articles_translations");
+                    translation.fields.put("language", language);
+                    translation.fields.put("title", capitalize(sentence(random, 3 + random.nextInt(5))) + " (" + language + ")");
+                    translation.fields.put("subtitle", "");
+                    translation.fields.put("intro", sentence(random, 20));
+                    translation.fields.put("body", "<p>" + sentence(random, 60) + "</p>");
+                    relation("langrel", "langrel", article, translation, -1);
+                }
+            }
+            for (int c = random.nextInt(comments + 1); c > 0; c--) {
+                Item comment = item("comments");
+                comment.fields.put("title", capitalize(sentence(random, 4)));
+                comment.fields.put("text", sentence(random, 30));
+                comment.fields.put("author", "Visitor " + random.nextInt(1000));
+                comment.fields.put("email", "");
+                comment.fields.put("url", "");
+                relation("insrel", "related", article, comment, -1);
+            }
+        }
+        log.service("Generated " + portals + " portals of " + paths.size() + " pages, " + articles + " articles in "
+                    + languages + ", " + items.size() + " nodes and " + relations.size() + " relations with seed " + seed);
+    }
+
+    /**
+     * The home page '/', followed by the pages below it, level after level, until there are enough.
+     * Each level has as many pages below a page as needed to reach the depth.
+     */
+    private void generatePaths(Random random) {
+        int fanout = Math.max(2, (int) Math.ceil(Math.pow(pages, 1.0 / depth)));
+        paths.add("/");
+        List<String> level = Collections.singletonList("");
+        for (int d = 0; d < depth && paths.size() < pages; d++) {
+            List<String> next = new ArrayList<>();
+            for (String parent : level) {
+                for (int i = 0; i < fanout && paths.size() < pages; i++) {
+                    String path = parent + "/" + WORDS[random.nextInt(WORDS.length)] + "-" + i;
+                    paths.add(path);
+                    next.add(path);
+                }
+            }
+            level = next;
+        }
+    }
+
+    private Item item(String builder) {
+        Item item = new Item(number++, builder);
+        items.add(item);
+        return item;
+    }
+
+    private void relation(String builder, String role, Item source, Item destination, int pos) {
+        relations.add(new Relation(number++, builder, role, source.number, destination.number, pos));
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                b.append(' ');
+            }
+            b.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return b.toString();
+    }
+
+    private static String capitalize(String s) {
+        return s.isEmpty() ? s : Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    /**
+     * Creates the generated nodes and relations in a cloud. Builders or relations the cloud does not
+     * have are skipped, and so are system fields like 'created'.
+     *
+     * @return The created nodes by the numbers they were generated with
+     */
+    public synchronized Map<Integer, Node> toCloud(Cloud cloud) {
+        if (items.isEmpty()) {
+            generate();
+        }
+        long start = System.currentTimeMillis();
+        Map<Integer, Node> created = new HashMap<>(items.size() * 2);
+        Set<String> skipped = new TreeSet<>();
+        for (Item item : items) {
+            if (! cloud.hasNodeManager(item.builder)) {
+                skipped.add(item.builder);
+                continue;
+            }
+            NodeManager nm = cloud.getNodeManager(item.builder);
+            Node node = nm.createNode();
+            for (Map.Entry<String, Object> e : item.fields.entrySet()) {
+                if (! nm.hasField(e.getKey()) || nm.getField(e.getKey()).isReadOnly()) {
+                    continue;
+                }
+                Object value = e.getValue();
+                if (value instanceof Ref) {
+                    node.setNodeValue(e.getKey(), created.get(((Ref) value).number));
+                } else if (value instanceof Long) {
+                    node.setDateValue(e.getKey(), new Date((Long) value * 1000));
+                } else {
+                    node.setValue(e.getKey(), value);
+                }
+            }
+            node.commit();
+            if (item.alias != null) {
+                node.createAlias(item.alias);
+            }
+            created.put(item.number, node);
+        }
+        for (Relation r : relations) {
+            Node source = created.get(r.source);
+            Node destination = created.get(r.destination);
+            if (source == null || destination == null
+                || ! cloud.hasRelationManager(source.getNodeManager(), destination.getNodeManager(), r.role)) {
+                skipped.add(r.role);
+                continue;
+            }
+            org.mmbase.bridge.Relation rel = source.createRelation(destination,
+                                                                   cloud.getRelationManager(source.getNodeManager(), destination.getNodeManager(), r.role));
+            if (r.pos >= 0 && rel.getNodeManager().hasField("pos")) {
+                rel.setIntValue("pos", r.pos);
+            }
+            rel.commit();
+        }
+        if (! skipped.isEmpty()) {
+            log.warn("Not in cloud, skipped: " + skipped);
+        }
+        log.service("Created " + created.size() + " nodes in " + (System.currentTimeMillis() - start) + " ms");
+        return created;
+    }
+
+    /**
+     * Nodes of the portals, the pages and the articles in the order they were generated, as created
+     * by {@link #toCloud}.
+     */
+    List<Node> getNodes(Map<Integer, Node> created, String builder) {
+        List<Item> list = "pools".equals(builder) ? portalItems : "pages".equals(builder) ? pageItems : articleItems;
+        List<Node> result = new ArrayList<>(list.size());
+        for (Item item : list) {
+            result.add(created.get(item.number));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the site as an MMBase application: 'name.xml' and a directory 'name' with the data of
+     * each builder, like the application 'MMSite'.
+     *
+     * @param directory The directory 'applications' of the configuration
+     * @param name      Name of the application
+     */
+    public synchronized void toApplication(File directory, String name) throws IOException {
+        if (items.isEmpty()) {
+            generate();
+        }
+        File data = new File(directory, name);
+        if (! data.isDirectory() && ! data.mkdirs()) {
+            throw new IOException("Could not create " + data);
+        }
+        Map<String, List<Item>> byBuilder = new TreeMap<>();
+        for (Item item : items) {
+            byBuilder.computeIfAbsent(item.builder, k -> new ArrayList<>()).add(item);
+        }
+        Map<String, List<Relation>> byRelationBuilder = new TreeMap<>();
+        Set<String> allowed = new LinkedHashSet<>();
+        Map<Integer, String> builders = new HashMap<>();
+        for (Item item : items) {
+            builders.put(item.number, item.builder);
+        }
+        for (Relation r : relations) {
+            byRelationBuilder.computeIfAbsent(r.builder, k -> new ArrayList<>()).add(r);
+            allowed.add("<relation from=\"" + builders.get(r.source) + "\" to=\"" + builders.get(r.destination) + "\" type=\"" + r.role + "\" />");
+        }
+
+        for (Map.Entry<String, List<Item>> e : byBuilder.entrySet()) {
+            try (Writer w = writer(new File(data, e.getKey() + ".xml"))) {
+                w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+                w.write("<" + e.getKey() + " exportsource=\"mmbase://generated/" + seed + "\" timestamp=\"20090417205734\">\n");
+                for (Item item : e.getValue()) {
+                    w.write("\t<node number=\"" + item.number + "\" owner=\"default\"");
+                    if (item.alias != null) {
+                        w.write(" alias=\"" + escape(item.alias) + "\"");
+                    }
+                    w.write(">\n");
+                    for (Map.Entry<String, Object> f : item.fields.entrySet()) {
+                        w.write("\t\t<" + f.getKey() + ">" + escape(String.valueOf(f.getValue())) + "</" + f.getKey() + ">\n");
+                    }
+                    w.write("\t</node>\n\n");
+                }
+                w.write("</" + e.getKey() + ">\n");
+            }
+        }
+        for (Map.Entry<String, List<Relation>> e : byRelationBuilder.entrySet()) {
+            try (Writer w = writer(new File(data, e.getKey() + ".xml"))) {
+                w.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+                w.write("<" + e.getKey() + " exportsource=\"mmbase://generated/" + seed + "\" timestamp=\"20090417205734\">\n");
+                for (Relation r : e.getValue()) {
+                    w.write("\t<node number=\"" + r.number + "\" owner=\"default\" snumber=\"" + r.source + "\" dnumber=\"" + r.destination
+                            + "\" rtype=\"" + r.role + "\" dir=\"bidirectional\">\n");
+                    if (r.pos >= 0) {
+                        w.write("\t\t<pos>" + r.pos + "</pos>\n");
+                    }
+                    w.write("\t</node>\n\n");
+                }
+                w.write("</" + e.getKey() + ">\n");
+            }
+        }
+
+        try (Writer w = writer(new File(directory, name + ".xml"))) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            w.write("<!DOCTYPE application PUBLIC \"-//MMBase//DTD application config 1.1//EN\" \"https://www.mmbase.org/dtd/application_1_1.dtd\">\n");
+            w.write("<application name=\"" + name + "\" maintainer=\"mmbase.org\" version=\"1\" auto-deploy=\"false\">\n\n");
+            w.write("  <requirements>\n    <requires name=\"MMSite\" maintainer=\"mmbase.org\" />\n");
+            if (byBuilder.containsKey("articles_translations")) {
+                w.write("    <requires name=\"MultiLanguage\" maintainer=\"mmbase.org\" />\n");
+            }
+            w.write("  </requirements>\n\n  <neededbuilderlist>\n");
+            for (String builder : byBuilder.keySet()) {
+                w.write("    <builder maintainer=\"mmbase.org\" version=\"1\">" + builder + "</builder>\n");
+            }
+            for (String builder : byRelationBuilder.keySet()) {
+                w.write("    <builder maintainer=\"mmbase.org\" version=\"1\">" + builder + "</builder>\n");
+            }
+            w.write("  </neededbuilderlist>\n\n  <neededreldeflist>\n  </neededreldeflist>\n\n  <allowedrelationlist>\n");
+            for (String relation : allowed) {
+                w.write("    " + relation + "\n");
+            }
+            w.write("  </allowedrelationlist>\n\n  <datasourcelist>\n");
+            for (String builder : byBuilder.keySet()) {
+                w.write("    <datasource builder=\"" + builder + "\" path=\"" + name + "/" + builder + ".xml\" />\n");
+            }
+            w.write("  </datasourcelist>\n\n  <relationsourcelist>\n");
+            for (String builder : byRelationBuilder.keySet()) {
+                w.write("    <relationsource builder=\"" + builder + "\" path=\"" + name + "/" + builder + ".xml\" />\n");
+            }
+            w.write("  </relationsourcelist>\n\n  <description>\n    Generated site of " + portals + " portals of " + paths.size()
+                    + " pages and " + articles + " articles, seed " + seed + ".\n  </description>\n</application>\n");
+        }
+        log.service("Wrote " + items.size() + " nodes and " + relations.size() + " relations to " + data);
+    }
+
+    private static Writer writer(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Writes a generated site as application, f.e. '-seed 42 -portals 2 -pages 10000 -depth 4
+     * -articles 100000 -comments 5 -languages nl,de,fr -name Generated -out config/applications'.
+     */
+    public static void main(String[] args) throws IOException {
+        SiteGenerator generator = new SiteGenerator();
+        String name = "Generated";
+        File out = new File(".");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "-seed":      generator.setSeed(Long.parseLong(value)); break;
+            case "-portals":   generator.setPortals(Integer.parseInt(value)); break;
+            case "-pages":     generator.setPages(Integer.parseInt(value)); break;
+            case "-depth":     generator.setDepth(Integer.parseInt(value)); break;
+            case "-articles":  generator.setArticles(Integer.parseInt(value)); break;
+            case "-comments":  generator.setComments(Integer.parseInt(value)); break;
+            case "-languages": generator.setLanguages(value); break;
+            case "-name":      name = value; break;
+            case "-out":       out = new File(value); break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        generator.generate();
+        generator.toApplication(out, name);
+    }
+
+}
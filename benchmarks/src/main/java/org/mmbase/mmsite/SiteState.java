@@ -0,0 +1,100 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * The site the benchmarks run against, generated by the {@link SiteGenerator}. Its size can be
+ * changed on the command line, f.e. <code>-p pages=100000 -p portals=1</code>. The site is created
+ * once per fork, the same seed gives the same site.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+@State(Scope.Benchmark)
+public class SiteState {
+
+    /** pages in each portal */
+    @Param({"1000", "10000"})
+    public int pages;
+
+    @Param({"10000"})
+    public int articles;
+
+    @Param({"3"})
+    public int portals;
+
+    @Param({"3"})
+    public int depth;
+
+    /** languages besides english the articles are translated in */
+    @Param({"nl,de"})
+    public String languages;
+
+    @Param({"1"})
+    public long seed;
+
+    BenchmarkSite site;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SiteGenerator generator = new SiteGenerator();
+        generator.setSeed(seed);
+        generator.setPortals(portals);
+        generator.setPages(pages);
+        generator.setDepth(depth);
+        generator.setArticles(articles);
+        generator.setLanguages(languages);
+        generator.generate();
+        site = new BenchmarkSite(generator);
+    }
+
+    /**
+     * Rotates through the pages and articles, per thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int i = 0;
+
+        int next(int length) {
+            if (++i >= length) {
+                i = 0;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Empties the url cache before each call, to measure creating a url instead of finding it.
+     */
+    @State(Scope.Thread)
+    public static class ColdCache {
+        @Setup(Level.Invocation)
+        public void clear() {
+            NiceUrlCache.getInstance().clear();
+        }
+    }
+
+}
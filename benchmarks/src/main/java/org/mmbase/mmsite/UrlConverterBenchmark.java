@@ -0,0 +1,138 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.mmbase.bridge.Node;
+import org.mmbase.framework.*;
+import org.mmbase.framework.basic.DirectoryUrlConverter;
+import org.mmbase.util.functions.*;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Both ways of the url conversion of {@link SiteUrlConverter} and {@link ArticlesUrlConverter}:
+ * creating the nice url of a page or article, found in the cache or not, and resolving a requested
+ * path to its template. Every call uses a new request, like the framework does.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlConverterBenchmark {
+
+    private static final Locale ENGLISH = new Locale("en");
+
+    private static Parameters frameworkParameters(DirectoryUrlConverter converter, HttpServletRequest request, Node portal) {
+        Parameters parameters = new Parameters(converter.getParameterDefinition());
+        parameters.set(Parameter.REQUEST, request);
+        if (converter instanceof ArticlesUrlConverter) {
+            parameters.set(Parameter.CLOUD, portal.getCloud());
+        }
+        return parameters;
+    }
+
+    private static String pageUrl(BenchmarkSite site, int i) {
+        Node page = site.pages[i];
+        Block block = ComponentRepository.getInstance().getComponent("mmsite").getBlock("page");
+        Node portal = site.portals[i * site.portals.length / site.pages.length];
+        Parameters parameters = block.createParameters();
+        parameters.set(Framework.N, page);
+        StringBuilder b = new StringBuilder();
+        site.siteConverter.getNiceDirectoryUrl(b, block, parameters,
+                                               frameworkParameters(site.siteConverter, BenchmarkSite.request("/", portal, ENGLISH), portal), false);
+        return b.toString();
+    }
+
+    private static String articleUrl(BenchmarkSite site, int i) {
+        Node article = site.articles[i];
+        Block block = ComponentRepository.getInstance().getComponent("mmsite").getBlock("article");
+        Node portal = site.portals[0];
+        Parameters parameters = block.createParameters();
+        Parameters fw = frameworkParameters(site.articlesConverter, BenchmarkSite.request("/", portal, ENGLISH), portal);
+        fw.set(ArticlesUrlConverter.ARTICLE, article);
+        StringBuilder b = new StringBuilder();
+        site.articlesConverter.getNiceDirectoryUrl(b, block, parameters, fw, false);
+        return b.toString();
+    }
+
+    /**
+     * @param path Path after the directory of the converter, the request is for the directory and the path
+     */
+    private static Url resolve(DirectoryUrlConverter converter, String path, Node portal) throws FrameworkException {
+        HttpServletRequest request = BenchmarkSite.request(converter.getDirectory() + path.substring(1), portal, ENGLISH);
+        List<String> pieces = new ArrayList<>(Arrays.asList(path.substring(1).split("/")));
+        return converter.getFilteredInternalDirectoryUrl(pieces, Collections.<String, Object>emptyMap(), frameworkParameters(converter, request, portal));
+    }
+
+    @Benchmark
+    public String pageNiceUrl(SiteState state, SiteState.Cursor cursor) {
+        return pageUrl(state.site, cursor.next(state.site.pages.length));
+    }
+
+    @Benchmark
+    public String pageNiceUrlUncached(SiteState state, SiteState.Cursor cursor, SiteState.ColdCache cold) {
+        return pageUrl(state.site, cursor.next(state.site.pages.length));
+    }
+
+    @Benchmark
+    public Url pageResolve(SiteState state, SiteState.Cursor cursor) throws FrameworkException {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.paths.length);
+        return resolve(site.siteConverter, site.paths[i], site.portals[i % site.portals.length]);
+    }
+
+    @Benchmark
+    public Url unknownResolve(SiteState state, SiteState.Cursor cursor) throws FrameworkException {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.paths.length);
+        return resolve(site.siteConverter, site.paths[i] + "/unknown", site.portals[i % site.portals.length]);
+    }
+
+    @Benchmark
+    public String articleNiceUrl(SiteState state, SiteState.Cursor cursor) {
+        return articleUrl(state.site, cursor.next(state.site.articles.length));
+    }
+
+    @Benchmark
+    public String articleNiceUrlUncached(SiteState state, SiteState.Cursor cursor, SiteState.ColdCache cold) {
+        return articleUrl(state.site, cursor.next(state.site.articles.length));
+    }
+
+    @Benchmark
+    public Url articleResolve(SiteState state, SiteState.Cursor cursor) throws FrameworkException {
+        BenchmarkSite site = state.site;
+        int i = cursor.next(site.articles.length);
+        String path = site.paths[i % site.paths.length];
+        return resolve(site.articlesConverter, (path.equals("/") ? "" : path) + "/" + site.articles[i].getNumber(), site.portals[0]);
+    }
+
+}
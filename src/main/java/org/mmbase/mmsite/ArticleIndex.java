@@ -0,0 +1,249 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.core.event.*;
+import org.mmbase.storage.search.FieldCompareConstraint;
+import org.mmbase.storage.search.SortOrder;
+import org.mmbase.storage.search.Step;
+import org.mmbase.storage.search.StepField;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Knows the numbers of all 'articles' that are shown, so {@link ArticlesUrlConverter} can refuse
+ * urls with numbers of other nodes, hidden articles or nodes that do not exist without asking the
+ * cloud. The numbers are kept in a {@link NumberBitmap}, read on first use in batches and kept up
+ * to date by node events on 'articles'.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class ArticleIndex implements NodeEventListener {
+    private static final Logger log = Logging.getLoggerInstance(ArticleIndex.class);
+
+    private static final int BATCH = 10000;
+
+    private static final ArticleIndex instance = new ArticleIndex();
+
+    public static ArticleIndex getInstance() {
+        return instance;
+    }
+
+    private volatile NumberBitmap visible = null;
+    /* articles changed while loading, read again when done */
+    private volatile boolean loading = false;
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private ArticleIndex() {
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    /**
+     * @param  number Node number
+     * @return whether it is an article (and not of a builder extending it) that is shown
+     */
+    public boolean isVisible(int number) {
+        NumberBitmap v = visible;
+        if (v == null) {
+            v = load();
+        }
+        return v.contains(number);
+    }
+
+    /**
+     * @return the number of articles shown
+     */
+    public int size() {
+        NumberBitmap v = visible;
+        return v == null ? 0 : v.cardinality();
+    }
+
+    /**
+     * Reads the numbers of all shown articles, which normally happens only once, on first use.
+     */
+    protected synchronized NumberBitmap load() {
+        if (visible != null) return visible;
+        long start = System.currentTimeMillis();
+        Cloud cloud = getCloud();
+        NodeManager articles = cloud.getNodeManager("articles");
+        pending.clear();
+        loading = true;
+
+        int[] numbers = new int[BATCH];
+        int count = 0;
+        int last = -1;
+        while (true) {
+            Query query = cloud.createQuery();
+            Step step = query.addStep(articles);
+            StepField numberField = query.addField(step, articles.getField("number"));
+            StepField otypeField = query.addField(step, articles.getField("otype"));
+            StepField showField = query.addField(step, articles.getField("show"));
+            Queries.addConstraint(query, query.createConstraint(otypeField, articles.getNumber()));
+            Queries.addConstraint(query, query.createConstraint(showField, Boolean.TRUE));
+            Queries.addConstraint(query, query.createConstraint(numberField, FieldCompareConstraint.GREATER, last));
+            query.addSortOrder(numberField, SortOrder.ORDER_ASCENDING);
+            query.setMaxNumber(BATCH);
+
+            NodeList batch = cloud.getList(query);
+            for (Node n : batch) {
+                if (count == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, count * 2);
+                }
+                last = n.getIntValue("articles.number");
+                numbers[count++] = last;
+            }
+            if (batch.size() < BATCH) {
+                break;
+            }
+        }
+        NumberBitmap result = NumberBitmap.of(numbers, count);
+        visible = result;
+        loading = false;
+        for (Integer number : pending) {
+            refresh(result, number);
+        }
+        pending.clear();
+        log.service("Indexed " + result.cardinality() + " shown articles in " + result.bytes() + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * @return The numbers of the shown articles, or <code>null</code> if they were not read (yet)
+     */
+    int[] getNumbers() {
+        NumberBitmap v = visible;
+        return v == null ? null : v.toArray();
+    }
+
+    /**
+     * Uses the numbers read from an {@link IndexSnapshot} instead of from the database.
+     */
+    synchronized void restore(int[] numbers) {
+        visible = NumberBitmap.of(numbers, numbers.length);
+        log.service("Restored " + visible.cardinality() + " shown articles");
+    }
+
+    /**
+     * Brings a restored index up to date with the articles changed since a certain time, by their field
+     * 'lastmodified'. Deleted articles can not be found like that, so when the number of shown
+     * articles does not match afterwards everything is read again.
+     *
+     * @param since Time in ms
+     */
+    synchronized void reconcile(long since) {
+        NumberBitmap v = visible;
+        if (v == null) {
+            load();
+            return;
+        }
+        Cloud cloud = getCloud();
+        NodeManager articles = cloud.getNodeManager("articles");
+        Query query = cloud.createQuery();
+        Step step = query.addStep(articles);
+        query.addField(step, articles.getField("number"));
+        StepField otypeField = query.addField(step, articles.getField("otype"));
+        query.addField(step, articles.getField("show"));
+        StepField lastmodifiedField = query.addField(step, articles.getField("lastmodified"));
+        Queries.addConstraint(query, query.createConstraint(otypeField, articles.getNumber()));
+        Queries.addConstraint(query, query.createConstraint(lastmodifiedField, FieldCompareConstraint.GREATER_EQUAL, new Date(since)));
+        int changed = 0;
+        for (Node n : cloud.getList(query)) {
+            int number = n.getIntValue("articles.number");
+            if (n.getBooleanValue("articles.show")) {
+                v.add(number);
+            } else {
+                v.remove(number);
+            }
+            changed++;
+        }
+
+        NodeQuery count = articles.createQuery();
+        Queries.addConstraint(count, count.createConstraint(count.getStepField(articles.getField("otype")), articles.getNumber()));
+        Queries.addConstraint(count, count.createConstraint(count.getStepField(articles.getField("show")), Boolean.TRUE));
+        int shown = Queries.count(count);
+        if (shown != v.cardinality()) {
+            log.service("Restored articles do not match, " + v.cardinality() + " instead of " + shown + ", reading them again");
+            visible = null;
+            load();
+        } else {
+            log.service("Reconciled " + changed + " articles changed since " + new Date(since));
+        }
+    }
+
+    /**
+     * Forgets everything, the index will be read again on next use.
+     */
+    public synchronized void clear() {
+        visible = null;
+    }
+
+    /**
+     * Reads whether an article is shown.
+     */
+    private void refresh(NumberBitmap v, int number) {
+        Cloud cloud = getCloud();
+        if (cloud.hasNode(number) && cloud.getNode(number).getBooleanValue("show")) {
+            v.add(number);
+        } else {
+            v.remove(number);
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (! "articles".equals(event.getBuilderName())) return;
+        int number = event.getNodeNumber();
+        NumberBitmap v = visible;
+        if (v == null) {
+            if (loading) {
+                pending.add(number);
+            }
+            return;
+        }
+        if (event.getType() == Event.TYPE_DELETE) {
+            v.remove(number);
+        } else if (event.getType() == Event.TYPE_NEW || event.getChangedFields().contains("show")) {
+            refresh(v, number);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Article #" + number + " visible: " + v.contains(number));
+        }
+    }
+
+}
@@ -21,8 +21,8 @@ along with MMBase. If not, see <http://www.gnu.org/licenses/>.
 
 package org.mmbase.mmsite;
 
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -30,6 +30,10 @@ import org.mmbase.bridge.*;
 import org.mmbase.bridge.util.Queries;
 import org.mmbase.framework.*;
 import org.mmbase.framework.basic.*;
+import org.mmbase.storage.search.RelationStep;
+import org.mmbase.storage.search.SortOrder;
+import org.mmbase.storage.search.Step;
+import org.mmbase.storage.search.StepField;
 import org.mmbase.util.functions.Parameter;
 import org.mmbase.util.functions.Parameters;
 import org.mmbase.util.logging.Logger;
@@ -63,24 +67,50 @@ public class ArticlesUrlConverter extends DirectoryUrlConverter {
     private static final Logger log = Logging.getLoggerInstance(ArticlesUrlConverter.class);
 
     private static final CharTransformer trans = new Identifier();
-    private boolean useTitle = false;
-    private String template = "/article.jspx";
+    /**
+     * The configuration of the converter, replaced as a whole when a setting changes.
+     */
+    private static final class Settings {
+        final boolean useTitle;
+        final String template;
+
+        Settings(boolean useTitle, String template) {
+            this.useTitle = useTitle;
+            this.template = template;
+        }
+    }
+
+    private volatile Settings settings = new Settings(false, "/article.jspx");
 
     private final LocaleUtil  localeUtil = LocaleUtil.getInstance();
+    private final NiceUrlCache cache = NiceUrlCache.getInstance();
+    /* concurrent misses for the same url wait for each other */
+    private final SingleFlight<String, NiceUrlCache.Entry> loading = new SingleFlight<>("article urls", 10000);
 
+    private static ArticlesUrlConverter instance;
+
+    @SuppressWarnings("LeakingThisInConstructor")
     public ArticlesUrlConverter(BasicFramework fw) {
         super(fw);
         setDirectory("/articles/");
         addBlock(ComponentRepository.getInstance().getComponent("mmsite").getBlock("article"));
         addBlock(ComponentRepository.getInstance().getComponent("mmsite").getBlock("article-comment"));
+        instance = this;
+    }
+    /**
+     *
+     * @return The last instance of an ArticlesUrlConverter
+     */
+    public static ArticlesUrlConverter getInstance() {
+        return instance;
     }
 
-    public void setUseTitle(boolean t) {
-        useTitle = t;
+    public synchronized void setUseTitle(boolean t) {
+        settings = new Settings(t, settings.template);
     }
 
-    public void setTemplate(String t) {
-        template = t;
+    public synchronized void setTemplate(String t) {
+        settings = new Settings(settings.useTitle, t);
     }
 
     @Override public int getDefaultWeight() {
@@ -98,11 +128,8 @@ public class ArticlesUrlConverter extends DirectoryUrlConverter {
     @Override
     public boolean isFilteredMode(Parameters frameworkParameters) throws FrameworkException {
         HttpServletRequest request = org.mmbase.framework.basic.BasicUrlConverter.getUserRequest(frameworkParameters.get(Parameter.REQUEST));
-        String path = FrameworkFilter.getPath(request);
-        for (String e : SiteUrlConverter.getInstance().excludedPaths) {
-            if (path.startsWith("/" + e + "/")) {
-                return false;
-            }
+        if (RequestPath.get(request).isExcluded()) {
+            return false;
         }
         return super.isFilteredMode(frameworkParameters);
     }
@@ -118,60 +145,229 @@ public class ArticlesUrlConverter extends DirectoryUrlConverter {
             log.debug("" + parameters + frameworkParameters);
             log.debug("Found mmsite block: " + block);
         }
-        int b_len = b.length();
         if (block.getName().contains("article")) {
             Node n = frameworkParameters.get(ARTICLE);
             if (n == null) throw new IllegalStateException("No articles parameter used in " + frameworkParameters);
 
-            // check if related to pages
-            Cloud cloud = frameworkParameters.get(Parameter.CLOUD);
-            //Cloud cloud = n.getCloud();
-            Query query = Queries.createRelatedNodesQuery(n, cloud.getNodeManager("pages"), "posrel", "source");
-            NodeList nl = cloud.getList(query);
-            if (nl.size() > 1) log.warn(nl.size() + " pages found related to articles #" + n.getNumber() + ", could only return first !");
-            if (!nl.isEmpty()) {
-                Node clusterNode = nl.getNode(0);
-                Node pages = cloud.getNode(clusterNode.getIntValue("pages.number"));
-                if (log.isDebugEnabled()) log.debug("Found pages: " + pages.getNumber());
-
-                String path = pages.getStringValue("path");
-                if (path.startsWith("/")) {
-                    path = path.substring(1);
-                }
-                if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
-                b.append(path);
+            String preview = null;
+            if (block.getName().equals("article-comment")) {
+                preview = (String) parameters.get("preview");
+                parameters.set("preview", null);
             }
+            boolean isPreview = preview != null && !preview.isEmpty();
+            String language = localeUtil.getLanguage(frameworkParameters);
+
+            String key = getKey(block, n.getNumber(), isPreview, language);
+            NiceUrlCache.Entry cached = cache.get(key);
+            if (cached == null) {
+                // check if related to pages
+                Cloud cloud = frameworkParameters.get(Parameter.CLOUD);
+                Supplier<NiceUrlCache.Entry> loader = () -> {
+                    PageIndex.Page page = getPages(cloud, Collections.singleton(n.getNumber())).get(n.getNumber());
+                    return getEntry(key, block, n, page, isPreview, language);
+                };
+                cached = n.getNumber() > 0 ? loading.get(key, loader) : loader.get();
+            }
+            b.append(cached.getUrl());
 
-            b.append("/").append(n.getNumber());
-            if (useTitle) {
-                b.append("/").append(trans.transform(n.getStringValue("title")));
+            if (log.isDebugEnabled()) {
+                log.debug("b: " + b);
             }
+        }
+    }
 
-            /* comment */
-            if (block.getName().equals("article-comment")) {
-                b.append("/comment");
-                String preview = (String) parameters.get("preview");
-                parameters.set("preview", null);
+    /**
+     * Nice urls for a list of articles, which can be used in listings instead of generating a link
+     * for each article separately. The pages of all articles are found with one query and the
+     * urls are put in the {@link NiceUrlCache}, so links made later on to the same articles need no
+     * queries at all.
+     *
+     * @param  request  HttpServletRequest
+     * @param  articles Nodes of type 'articles'
+     * @return the urls in the same order as the articles
+     */
+    public List<String> getNiceUrls(HttpServletRequest request, NodeList articles) {
+        List<String> result = new ArrayList<>(articles.size());
+        if (articles.isEmpty()) {
+            return result;
+        }
+        Map<Integer, NiceUrlCache.Entry> entries = getEntries(articles, localeUtil.getLanguage(request, null));
+        String prefix = request.getContextPath() + getDirectory();
+        for (Node n : articles) {
+            result.add(prefix + entries.get(n.getNumber()).getUrl());
+        }
+        return result;
+    }
 
-                if (preview != null && !preview.isEmpty()) {
-                    b.append("/preview");
+    /**
+     * The cached urls of a list of articles, the missing ones are created with one query.
+     */
+    private Map<Integer, NiceUrlCache.Entry> getEntries(NodeList articles, String language) {
+        Block block = ComponentRepository.getInstance().getComponent("mmsite").getBlock("article");
+        Map<Integer, NiceUrlCache.Entry> entries = new HashMap<>();
+        Set<Integer> missing = new HashSet<>();
+        for (Node n : articles) {
+            NiceUrlCache.Entry cached = cache.get(getKey(block, n.getNumber(), false, language));
+            if (cached != null) {
+                entries.put(n.getNumber(), cached);
+            } else {
+                missing.add(n.getNumber());
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Integer, PageIndex.Page> pages = getPages(articles.getNode(0).getCloud(), missing);
+            for (Node n : articles) {
+                if (missing.contains(n.getNumber()) && !entries.containsKey(n.getNumber())) {
+                    String key = getKey(block, n.getNumber(), false, language);
+                    entries.put(n.getNumber(), getEntry(key, block, n, pages.get(n.getNumber()), false, language));
                 }
             }
+        }
+        return entries;
+    }
 
-            if (b.length() > b_len) {   // check if url is altered
-                if (SiteUrlConverter.getInstance().useExtension) {
-                    b.append(".").append(SiteUrlConverter.getInstance().extension);
-                }
+    /**
+     * Puts the urls of the most recent articles that are shown in the {@link NiceUrlCache}, in batches.
+     * Used by {@link WarmUp}.
+     *
+     * @param  cloud MMBase cloud
+     * @param  max   Maximum number of articles
+     * @return the number of urls created
+     */
+    public int warmUp(Cloud cloud, int max) {
+        NodeManager articles = cloud.getNodeManager("articles");
+        NodeQuery query = articles.createQuery();
+        StepField showField = query.getStepField(articles.getField("show"));
+        Queries.addConstraint(query, query.createConstraint(showField, Boolean.TRUE));
+        query.addSortOrder(query.getStepField(articles.getField("number")), SortOrder.ORDER_DESCENDING);
+        query.setMaxNumber(max);
+        NodeList list = articles.getList(query);
+        for (int i = 0; i < list.size(); i += 500) {
+            getEntries(list.subNodeList(i, Math.min(list.size(), i + 500)), null);
+        }
+        return list.size();
+    }
+
+    /**
+     * The pages on which articles are published, found with one query for all of them.
+     *
+     * @param  cloud    MMBase cloud
+     * @param  articles Node numbers of articles
+     * @return map of article number to its page, articles not related to a page are not in it
+     */
+    protected static Map<Integer, PageIndex.Page> getPages(Cloud cloud, Collection<Integer> articles) {
+        Map<Integer, PageIndex.Page> result = new HashMap<>();
+        if (articles.isEmpty()) {
+            return result;
+        }
+        NodeManager articlesNM = cloud.getNodeManager("articles");
+        NodeManager pagesNM = cloud.getNodeManager("pages");
+        Query query = cloud.createQuery();
+        Step articleStep = query.addStep(articlesNM);
+        RelationStep relationStep = query.addRelationStep(pagesNM, "posrel", "source");
+        Step pageStep = relationStep.getNext();
+        StepField articleField = query.addField(articleStep, articlesNM.getField("number"));
+        StepField pageField = query.addField(pageStep, pagesNM.getField("number"));
+        query.addSortOrder(pageField, SortOrder.ORDER_ASCENDING);
+        Queries.addConstraint(query, query.createConstraint(articleField, new TreeSet<>(articles)));
+
+        PageIndex index = PageIndex.getInstance();
+        for (Node clusterNode : cloud.getList(query)) {
+            int article = clusterNode.getIntValue("articles.number");
+            PageIndex.Page page = index.getPage(clusterNode.getIntValue("pages.number"));
+            if (page == null) {
+                continue;
+            }
+            PageIndex.Page other = result.putIfAbsent(article, page);
+            if (other != null) {
+                log.warn("More pages found related to articles #" + article + ", could only return first !");
+            } else if (log.isDebugEnabled()) {
+                log.debug("Found pages: " + page.getNumber());
             }
-            localeUtil.appendLanguage(b, frameworkParameters);
+        }
+        return result;
+    }
 
-            if (log.isDebugEnabled()) {
-                log.debug("b: " + b);
+    private String getKey(Block block, int article, boolean preview, String language) {
+        SiteUrlConverter.Settings site = SiteUrlConverter.getInstance().getSettings();
+        return NiceUrlCache.key(this, block, article, language,
+                                (settings.useTitle ? "t" : "") + (preview ? "p" : "") + (site.useExtension ? site.extension : ""));
+    }
+
+    /**
+     * The nice url of an article without comment, extension or language, f.e. 'news/2345/article_title'.
+     *
+     * @param pagePath Path of the page the article is on, or <code>null</code>
+     */
+    String getPath(String pagePath, int number, String title) {
+        StringBuilder b = new StringBuilder();
+        if (pagePath != null) {
+            b.append(pagePath);
+        }
+        b.append("/").append(number);
+        if (settings.useTitle) {
+            b.append("/").append(trans.transform(title));
+        }
+        return b.toString();
+    }
+
+    /**
+     * The nice url of an article after the directory, f.e. 'news/2345/article_title.html.nl'.
+     *
+     * @param page     The page the article is on, or <code>null</code>
+     * @param language Language to append or <code>null</code>
+     */
+    String getNiceUrl(PageIndex.Page page, int number, String title, String language) {
+        SiteUrlConverter.Settings site = SiteUrlConverter.getInstance().getSettings();
+        StringBuilder b = new StringBuilder(getPath(page == null ? null : page.getPath(), number, title));
+        if (site.useExtension) {
+            b.append(".").append(site.extension);
+        }
+        localeUtil.appendLanguage(b, language);
+        return b.toString();
+    }
+
+    /**
+     * Creates the nice url of an article and puts it in the cache.
+     */
+    private NiceUrlCache.Entry getEntry(String key, Block block, Node n, PageIndex.Page page, boolean preview, String language) {
+        SiteUrlConverter.Settings site = SiteUrlConverter.getInstance().getSettings();
+        StringBuilder b = new StringBuilder(getPath(page == null ? null : page.getPath(), n.getNumber(), n.getStringValue("title")));
+
+        /* comment */
+        if (block.getName().equals("article-comment")) {
+            b.append("/comment");
+            if (preview) {
+                b.append("/preview");
             }
         }
+
+        if (site.useExtension) {
+            b.append(".").append(site.extension);
+        }
+        localeUtil.appendLanguage(b, language);
+
+        NiceUrlCache.Entry entry = new NiceUrlCache.Entry(n.getNumber(), page == null ? -1 : page.getNumber(), b.toString());
+        if (n.getNumber() > 0) {
+            cache.put(key, entry);
+        }
+        return entry;
     }
 
 
+    /**
+     * The number of segments of the directory, which the request path starts with.
+     */
+    private int getDirectorySegments() {
+        int count = 0;
+        for (String segment : getDirectory().split("/")) {
+            if (! segment.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Translates the result of {@link #getNiceUrl} back to an actual JSP which can render the block.
      * Articles always get resolved by nodenumber. Structure of this url can be:
@@ -181,66 +377,90 @@ public class ArticlesUrlConverter extends DirectoryUrlConverter {
      */
     @Override
     public Url getFilteredInternalDirectoryUrl(List<String>  path, Map<String, ?> params, Parameters frameworkParameters) {
-        if (log.isDebugEnabled()) log.debug("path pieces: " + path + ", path size: " + path.size());
-
-        HttpServletRequest request = frameworkParameters.get(Parameter.REQUEST);
+        HttpServletRequest request = BasicUrlConverter.getUserRequest(frameworkParameters.get(Parameter.REQUEST));
+        RequestPath rp = RequestPath.get(request);
+        if (log.isDebugEnabled()) log.debug("path pieces: " + path + ", path: " + rp + ", path size: " + rp.size());
 
+        Settings s = settings;
         StringBuilder result = new StringBuilder();
-        if (path.isEmpty()) {
+        // the request path starts with the directory, f.e. '/articles/news/345', the pieces after it
+        // are read from the parsed request path which left out language and extension already
+        int first = getDirectorySegments();
+        if (path.isEmpty() || rp.size() <= first) {
             return Url.NOT;
         } else {
-            result.append(template).append("?n=");
-
-            // last element can contain language and/or extension
-            String last = path.get(path.size() - 1);
-            last = localeUtil.setLanguage(last, request);
-            if (SiteUrlConverter.getInstance().useExtension && last.contains(SiteUrlConverter.getInstance().extension)) {
-                last = last.substring(0, last.lastIndexOf(SiteUrlConverter.getInstance().extension) - 1);
+            result.append(s.template).append("?n=");
+
+            // last element can contain language and/or extension, RequestPath left them out
+            localeUtil.setLanguage(rp, request);
+
+            int last = rp.size() - 1;
+
+            /* TODO: comment (not configurable (yet), always 'comment' and 'comment.jsp') */
+            if (rp.segmentEquals(last, "comment")) {
+                last--;
+                if (log.isDebugEnabled()) log.debug("comment! last now: " + last);
+                result = new StringBuilder("/comment.jsp?n=");
+            } else if (rp.segmentEquals(last, "preview")) {
+                last -= 2;
+                if (log.isDebugEnabled()) log.debug("preview! last now: " + last);
+                result = new StringBuilder("/comment.jsp?preview=preview&n=");
             }
-            path.set(path.size() - 1, last);    // put it back
-
-            String nr;
-            if (!path.isEmpty()) {
-
-                /* TODO: comment (not configurable (yet), always 'comment' and 'comment.jsp') */
-                if (path.get(path.size() - 1).equals("comment")) {
-                    path.remove(path.size() - 1);
-                    if (log.isDebugEnabled()) log.debug("comment! path now: " + path);
-                    result = new StringBuilder("/comment.jsp?n=");
-                } else if (path.get(path.size() - 1).equals("preview")) {
-                    path.remove(path.size() - 1);
-                    path.remove(path.size() - 1);
-                    if (log.isDebugEnabled()) log.debug("preview! path now: " + path);
-                    result = new StringBuilder("/comment.jsp?preview=preview&n=");
-                }
-
-                if (useTitle && path.size() > 1) { // uses title: nodenumber is 2nd last element
-                    nr = path.get(path.size() - 2);
-                } else {
-                    nr = path.get(path.size() - 1);
-                }
 
-            } else {
+            if (last < first) {
                 if (log.isDebugEnabled()) log.debug("path not > 0");
                 return Url.NOT;
             }
+            int i = s.useTitle && last > first ? last - 1 : last; // uses title: nodenumber is 2nd last element
 
             Cloud cloud = frameworkParameters.get(Parameter.CLOUD);
-            if (log.isDebugEnabled()) log.debug("articles nr: " + nr);
-            if (cloud != null && cloud.hasNode(nr)) {
-                Node article = cloud.getNode(nr);
+            if (cloud == null) {
+                return Url.NOT;
+            }
+            Node article;
+            int number = rp.segmentAsNumber(i);
+            if (number >= 0) {
+                if (log.isDebugEnabled()) log.debug("articles nr: " + number);
+                if (! ArticleIndex.getInstance().isVisible(number)) {
+                    // no articles, not shown or not found
+                    return Url.NOT;
+                }
+                article = cloud.getNode(number);
+            } else if (rp.segmentIsDigits(i)) {
+                // too big for a node number, not worth asking the cloud
+                return Url.NOT;
+            } else {
+                String nr = rp.segment(i);
+                if (log.isDebugEnabled()) log.debug("articles alias: " + nr);
+                if (! cloud.hasNode(nr)) {
+                    // node not found
+                    return Url.NOT;
+                }
+                article = cloud.getNode(nr);
                 if (! article.getNodeManager().getName().equals("articles")) {
                     return Url.NOT;
                 } else if (! article.getBooleanValue("show")) {
                     log.warn("Articles not shown: " + article.getBooleanValue("show"));
                     return Url.NOT;
-                } else {
-                    frameworkParameters.set(ARTICLE, article);
-                    result.append(nr);
                 }
-            } else {
-                // node not found
-                return Url.NOT;
+            }
+            frameworkParameters.set(ARTICLE, article);
+            result.append(article.getNumber());
+
+            if (last == rp.size() - 1) {
+                // validators for the article and the page in the path before it, not for comments
+                int page = -1;
+                if (i > first) {
+                    StringBuilder pagePath = new StringBuilder();
+                    for (int j = first; j < i; j++) {
+                        pagePath.append('/').append(rp.segment(j));
+                    }
+                    PageIndex.Page p = UrlUtils.getIndexedPagebyPath(request, cloud, pagePath.toString());
+                    if (p != null) {
+                        page = p.getNumber();
+                    }
+                }
+                Validator.set(request, article.getNumber(), page);
             }
 
         }
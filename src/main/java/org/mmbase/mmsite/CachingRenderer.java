@@ -0,0 +1,229 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.util.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.framework.*;
+import org.mmbase.security.Rank;
+import org.mmbase.util.functions.Parameter;
+import org.mmbase.util.functions.Parameters;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Renders a block of MMSite once per node, locale, url and component id, and then takes the html from
+ * the {@link FragmentCache}, until one of the nodes it shows changes. Those are the node of the block
+ * and the nodes related to it, like the comments and translations of an article, so a block may only
+ * show those: a change of f.e. the template or the portal of a page does not remove it. Blocks without
+ * a node, like the lists of pages and articles, are always rendered, and so are the blocks for editors
+ * (users who are logged in), previews, posts and requests with a query string. Html with a session id
+ * in its links is never cached, nor is that of a request whose session is not kept in a cookie, since
+ * its links would be rewritten with it. The cache is off unless 'fragmentCache' is 'true' in
+ * 'utils/mmsite.xml'. Configured in 'components/mmsite.xml' around the renderer of the jsp:
+ * <pre>
+ *   &lt;body&gt;
+ *     &lt;class name="org.mmbase.mmsite.CachingRenderer"&gt;
+ *       &lt;class name="org.mmbase.framework.JspRenderer"&gt;
+ *         &lt;param name="path"&gt;article.jspx&lt;/param&gt;
+ *       &lt;/class&gt;
+ *     &lt;/class&gt;
+ *   &lt;/body&gt;
+ * </pre>
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class CachingRenderer extends WrappedRenderer {
+    private static final Logger log = Logging.getLoggerInstance(CachingRenderer.class);
+
+    /* a node with more related nodes than this is not cached, it would be invalidated all the time */
+    private static final int MAX_NODES = 1000;
+
+    /* set by the framework for each block it renders */
+    private static final String COMPONENT_ID = "org.mmbase.componentId";
+    /* links rewritten with the session id contain this */
+    private static final String SESSION_ID = ";jsessionid=";
+
+    private final FragmentCache cache = FragmentCache.getInstance();
+
+    public CachingRenderer(Renderer wrapped) {
+        super(wrapped);
+    }
+
+    public CachingRenderer(String type, Block parent) {
+        super(type, parent);
+    }
+
+    @Override
+    public void render(Parameters blockParameters, Writer w, RenderHints hints) throws FrameworkException {
+        HttpServletRequest request = blockParameters.get(Parameter.REQUEST);
+        Node node = getNode(blockParameters);
+        if (! cache.isEnabled() || node == null || request == null || isBypassed(request, blockParameters)) {
+            if (cache.isEnabled()) {
+                cache.bypass();
+            }
+            super.render(blockParameters, w, hints);
+            return;
+        }
+
+        Object locale = request.getAttribute(LocaleUtil.LOCALE_KEY);
+        String key = FragmentCache.key(getBlock().getName(), node.getNumber(),
+                                       locale instanceof Locale ? (Locale) locale : request.getLocale(),
+                                       getRequestUri(request) + "#" + request.getAttribute(COMPONENT_ID));
+        String html = cache.get(key);
+        if (html == null) {
+            long stamp = cache.stamp();
+            StringWriter buffer = new StringWriter();
+            super.render(blockParameters, buffer, hints);
+            html = buffer.toString();
+            if (html.contains(SESSION_ID)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Not caching " + key + ", it contains a session id");
+                }
+                writeTo(w, html);
+                return;
+            }
+            Set<Integer> nodes = getNodes(node);
+            if (nodes != null) {
+                cache.put(key, html, nodes, stamp);
+            }
+        } else if (log.isDebugEnabled()) {
+            log.debug("Found " + key);
+        }
+        writeTo(w, html);
+    }
+
+    private static void writeTo(Writer w, String html) throws FrameworkException {
+        try {
+            w.write(html);
+        } catch (IOException ioe) {
+            throw new FrameworkException(ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * The url that was requested, before it was forwarded to the template.
+     */
+    static String getRequestUri(HttpServletRequest request) {
+        Object uri = request.getAttribute("javax.servlet.forward.request_uri");
+        return uri != null ? uri.toString() : request.getRequestURI();
+    }
+
+    /**
+     * The node of the block, parameter 'n'.
+     */
+    protected Node getNode(Parameters blockParameters) {
+        if (! blockParameters.containsParameter("n")) {
+            return null;
+        }
+        Object n = blockParameters.get("n");
+        if (n instanceof Node) {
+            Node node = (Node) n;
+            return node.isNew() ? null : node;
+        }
+        return null;
+    }
+
+    /**
+     * Whether to render without the cache: for editors, previews, posts, requests with a query string
+     * and requests whose session id is not in a cookie.
+     */
+    protected boolean isBypassed(HttpServletRequest request, Parameters blockParameters) {
+        if (! "GET".equals(request.getMethod()) && ! "HEAD".equals(request.getMethod())) {
+            return true;
+        }
+        Object query = request.getAttribute("javax.servlet.forward.query_string");
+        if (query == null) {
+            query = request.getQueryString();
+        }
+        if (query != null && ! "".equals(query)) {
+            return true;
+        }
+        if (request.isRequestedSessionIdFromURL()
+            || (request.getSession(false) != null && ! request.isRequestedSessionIdFromCookie())) {
+            return true;
+        }
+        if (blockParameters.containsParameter("preview")) {
+            Object preview = blockParameters.get("preview");
+            if (preview != null && ! "".equals(preview)) {
+                return true;
+            }
+        }
+        return isEditor(request);
+    }
+
+    /**
+     * Whether the user is logged in, in the container or in the cloud of the session.
+     */
+    static boolean isEditor(HttpServletRequest request) {
+        if (request.getUserPrincipal() != null) {
+            return true;
+        }
+        HttpSession session = request.getSession(false);
+        if (session != null) {
+            Object cloud = session.getAttribute("cloud_mmbase");
+            if (cloud instanceof Cloud && ((Cloud) cloud).getUser().getRank().getInt() > Rank.ANONYMOUS.getInt()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The node and the nodes related to it.
+     *
+     * @return the numbers, or <code>null</code> if there are too many to cache the block
+     */
+    protected Set<Integer> getNodes(Node node) {
+        Set<Integer> result = new HashSet<>();
+        result.add(node.getNumber());
+        Cloud cloud = node.getCloud();
+        NodeQuery query = Queries.createRelatedNodesQuery(node, cloud.getNodeManager("object"), null, "both");
+        query.setMaxNumber(MAX_NODES + 1);
+        NodeList related = query.getNodeManager().getList(query);
+        if (related.size() > MAX_NODES) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not caching #" + node.getNumber() + ", more than " + MAX_NODES + " related nodes");
+            }
+            return null;
+        }
+        for (Node n : related) {
+            result.add(n.getNumber());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "cached " + super.toString();
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.IOException;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Answers '304 Not Modified' to conditional requests for pages and articles that did not change,
+ * before their template runs, and sets the headers 'ETag', 'Last-Modified' and 'Cache-Control'
+ * (with 'max-age' from the field 'expires' of the page) from the {@link Validator} the url converters
+ * put in the request. It must see the request after the FrameworkFilter forwarded it to the
+ * template, so map it in web.xml with dispatcher FORWARD:
+ * <pre>
+ *   &lt;filter-mapping&gt;
+ *     &lt;filter-name&gt;mmsite-conditional&lt;/filter-name&gt;
+ *     &lt;url-pattern&gt;/*&lt;/url-pattern&gt;
+ *     &lt;dispatcher&gt;FORWARD&lt;/dispatcher&gt;
+ *   &lt;/filter-mapping&gt;
+ * </pre>
+ * Editors (users who are logged in) always get a fresh page that is not cached.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class ConditionalGetFilter implements Filter {
+    private static final Logger log = Logging.getLoggerInstance(ConditionalGetFilter.class);
+
+    @Override
+    public void init(FilterConfig config) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+        if (! (req instanceof HttpServletRequest) || ! (res instanceof HttpServletResponse)) {
+            chain.doFilter(req, res);
+            return;
+        }
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+        Validator validator = Validator.get(request);
+        if (validator == null || (! "GET".equals(request.getMethod()) && ! "HEAD".equals(request.getMethod()))) {
+            chain.doFilter(request, response);
+            return;
+        }
+        // only once, not again when the template forwards or includes
+        request.removeAttribute(Validator.KEY);
+
+        if (CachingRenderer.isEditor(request)) {
+            response.setHeader("Cache-Control", "private, no-cache");
+            chain.doFilter(request, response);
+            return;
+        }
+
+        try {
+            response.setHeader("ETag", validator.getETag());
+            if (validator.getLastModified() >= 0) {
+                response.setDateHeader("Last-Modified", validator.getLastModified());
+            }
+            int maxAge = validator.getMaxAge();
+            response.setHeader("Cache-Control", maxAge > 0 ? "max-age=" + maxAge : "no-cache");
+            // the translation can depend on the language of the browser
+            response.addHeader("Vary", "Accept-Language");
+            if (validator.isNotModified(request)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Not modified: " + validator + " " + validator.getETag());
+                }
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not determine " + validator + ": " + e.getMessage(), e);
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+}
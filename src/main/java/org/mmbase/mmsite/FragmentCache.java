@@ -0,0 +1,318 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mmbase.core.event.*;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+import org.mmbase.util.xml.UtilReader;
+
+
+/**
+ * Cache for the html rendered by the blocks of MMSite, see {@link CachingRenderer}. An entry is
+ * removed when one of the nodes it was rendered from changes, or a relation of one of them is
+ * created, changed or deleted. Its memory is bounded by the total size of the html, the least
+ * recently used entries are evicted first, and html larger than a maximum is not cached at all.
+ * Configured in 'utils/mmsite.xml' with the properties 'fragmentCache' (true to turn it on),
+ * 'fragmentCacheBytes' and 'fragmentMaxBytes'. The function 'fragmentcache' of the set 'mmsite'
+ * shows the hit ratio.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class FragmentCache implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(FragmentCache.class);
+
+    private static final FragmentCache instance = new FragmentCache();
+
+    public static FragmentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Rendered html and the numbers of the nodes it was rendered from.
+     */
+    static final class Entry {
+        final String html;
+        final int[] nodes;
+
+        Entry(String html, int[] nodes) {
+            this.html = html;
+            this.nodes = nodes;
+        }
+
+        long bytes() {
+            return 64 + 2L * html.length() + 4L * nodes.length;
+        }
+    }
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    /* guarded by this */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<Integer, Set<String>> keysByNode = new HashMap<>();
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    /* counts changes, html rendered while one of its nodes changed is not cached since it may be outdated */
+    private final AtomicLong changes = new AtomicLong();
+    /* guarded by this, the last change of each node that changed recently */
+    private final Map<Integer, Long> changed = new HashMap<>();
+    /* guarded by this, changes up to this one are forgotten */
+    private long forgotten = 0;
+    private static final int MAX_CHANGED = 10000;
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private FragmentCache() {
+        Map<String, String> properties = new UtilReader("mmsite.xml").getProperties();
+        enabled = "true".equals(properties.get("fragmentCache"));
+        maxBytes = getLong(properties, "fragmentCacheBytes", 16L * 1024 * 1024);
+        maxEntryBytes = getLong(properties, "fragmentMaxBytes", 64L * 1024);
+        log.service("Fragment cache " + (enabled ? "of " + maxBytes + " bytes, at most " + maxEntryBytes + " per block" : "disabled"));
+    }
+
+    private static long getLong(Map<String, String> properties, String property, long def) {
+        String value = properties.get(property);
+        try {
+            return value == null || value.trim().isEmpty() ? def : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            log.warn("Property " + property + " is no number: " + value);
+            return def;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param block    Name of the block
+     * @param node     Number of the node the block shows
+     * @param locale   Locale it is rendered in
+     * @param url      The url it is rendered for, and the id of the component on it
+     */
+    static String key(String block, int node, Locale locale, String url) {
+        return new StringBuilder(block)
+            .append(':').append(node)
+            .append(':').append(locale == null ? "" : locale.toString())
+            .append(':').append(url == null ? "" : url)
+            .toString();
+    }
+
+    /**
+     * @return the cached html or <code>null</code>
+     */
+    String get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.html;
+    }
+
+    /**
+     * @return a stamp to pass to {@link #put} after rendering
+     */
+    long stamp() {
+        return changes.get();
+    }
+
+    /**
+     * Caches html unless it is too large or one of its nodes changed since it was rendered.
+     *
+     * @param nodes The nodes it was rendered from, a change of which removes it
+     * @param stamp The result of {@link #stamp} before rendering
+     */
+    void put(String key, String html, Collection<Integer> nodes, long stamp) {
+        int[] numbers = new int[nodes.size()];
+        int i = 0;
+        for (Integer n : nodes) {
+            numbers[i++] = n;
+        }
+        Entry entry = new Entry(html, numbers);
+        if (entry.bytes() > maxEntryBytes) {
+            tooLarge.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Not caching " + key + ", " + entry.bytes() + " bytes");
+            }
+            return;
+        }
+        synchronized (this) {
+            if (stamp < forgotten) {
+                return;
+            }
+            for (int number : numbers) {
+                Long change = changed.get(number);
+                if (change != null && change > stamp) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Not caching " + key + ", #" + number + " changed while rendering");
+                    }
+                    return;
+                }
+            }
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.bytes();
+            for (int number : numbers) {
+                keysByNode.computeIfAbsent(number, k -> new HashSet<>()).add(key);
+            }
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                unlink(eldest.getKey(), eldest.getValue());
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Counts a request that did not use the cache, f.e. of an editor.
+     */
+    void bypass() {
+        bypassed.incrementAndGet();
+    }
+
+    /* guarded by this */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unlink(key, entry);
+        }
+    }
+
+    /* guarded by this */
+    private void unlink(String key, Entry entry) {
+        bytes -= entry.bytes();
+        for (int number : entry.nodes) {
+            Set<String> keys = keysByNode.get(number);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByNode.remove(number);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the html rendered from a node.
+     */
+    public synchronized void invalidate(int number) {
+        long change = changes.incrementAndGet();
+        changed.put(number, change);
+        if (changed.size() > MAX_CHANGED) {
+            // renders that started before the oldest half of these changes are not cached
+            forgotten = change - MAX_CHANGED / 2;
+            changed.values().removeIf(c -> c <= forgotten);
+        }
+        Set<String> keys = keysByNode.get(number);
+        if (keys == null) {
+            return;
+        }
+        List<String> removed = new ArrayList<>(keys);
+        for (String key : removed) {
+            remove(key);
+        }
+        invalidated.addAndGet(removed.size());
+        if (log.isDebugEnabled()) {
+            log.debug("Removed " + removed.size() + " fragments of #" + number);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        keysByNode.clear();
+        changed.clear();
+        forgotten = changes.get();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the part of the lookups that was found, between 0 and 1
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Hits, misses, hit ratio, size in bytes etc.
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("entries", entries.size());
+        result.put("bytes", bytes);
+        result.put("maxBytes", maxBytes);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("hitRatio", getHitRatio());
+        result.put("bypassed", bypassed.get());
+        result.put("tooLarge", tooLarge.get());
+        result.put("evicted", evicted.get());
+        result.put("invalidated", invalidated.get());
+        return result;
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (event.getType() == Event.TYPE_NEW) return; // a new node is in nothing rendered yet
+        invalidate(event.getNodeNumber());
+    }
+
+    @Override
+    public void notify(RelationEvent event) {
+        invalidate(event.getRelationSourceNumber());
+        invalidate(event.getRelationDestinationNumber());
+    }
+
+    @Override
+    public String toString() {
+        return "FragmentCache " + getStatistics();
+    }
+
+}
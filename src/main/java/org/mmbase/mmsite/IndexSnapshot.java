@@ -0,0 +1,276 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.mmbase.module.core.MMBase;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Writes the indexes MMSite uses to resolve urls to a file in the data directory of MMBase, and
+ * reads them back on start up, so that a restart does not need to read all pages and articles from
+ * the database before the site can be visited. Saved are the templates of the {@link TemplateCache},
+ * the pages of the {@link PageIndex}, the hierarchy of the {@link PortalIndex} and the shown articles
+ * of the {@link ArticleIndex}.
+ * The file starts with a version and the time it was written, and ends with a checksum. It is
+ * mapped in memory when read. When it is missing, of another version or corrupt it is ignored and
+ * the indexes are read from the database as usual.
+ * A restored index is brought up to date by {@link WarmUp}: articles changed since the snapshot
+ * by their field 'lastmodified', pages, which do not have that field, by reading them again.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class IndexSnapshot {
+    private static final Logger log = Logging.getLoggerInstance(IndexSnapshot.class);
+
+    private static final int MAGIC = 0x4d4d5349; // MMSI
+    private static final int VERSION = 1;
+    private static final String FILE = "mmsite-index.bin";
+    /* changes this long before the snapshot are reconciled too */
+    private static final long MARGIN = 60000;
+
+    private static final IndexSnapshot instance = new IndexSnapshot();
+
+    public static IndexSnapshot getInstance() {
+        return instance;
+    }
+
+    private ScheduledExecutorService scheduler = null;
+    private volatile long restored = -1;
+
+    private IndexSnapshot() {
+    }
+
+    protected File getFile() {
+        return new File(MMBase.getMMBase().getDataDir(), FILE);
+    }
+
+    /**
+     * @return the time of the snapshot that was restored minus a margin, or <code>-1</code> if none was
+     */
+    public long getRestored() {
+        return restored;
+    }
+
+    /**
+     * Writes the snapshot every so many minutes, in a daemon thread.
+     */
+    public synchronized void schedule(long minutes) {
+        if (scheduler != null || minutes <= 0) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MMSite index snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                write();
+            } catch (Exception e) {
+                log.warn("Could not write snapshot: " + e.getMessage(), e);
+            }
+        }, minutes, minutes, TimeUnit.MINUTES);
+        log.service("Writing snapshot of indexes to " + getFile() + " every " + minutes + " minutes");
+    }
+
+    /**
+     * Writes the indexes that are read to a temporary file, which then replaces the snapshot.
+     */
+    public synchronized void write() throws IOException {
+        Collection<PageIndex.Page> pages = PageIndex.getInstance().getAllPages();
+        if (pages.isEmpty()) {
+            log.debug("Pages not read yet, not writing snapshot");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        File file = getFile();
+        File temp = new File(file.getParentFile(), FILE + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(start);
+            DataOutputStream body = new DataOutputStream(new CheckedOutputStream(out, crc));
+
+            Collection<TemplateCache.Template> templates = new ArrayList<>(TemplateCache.getInstance().getAll());
+            body.writeInt(templates.size());
+            for (TemplateCache.Template t : templates) {
+                body.writeInt(t.getNumber());
+                writeString(body, t.getUrl());
+                writeString(body, t.getMimetype());
+            }
+
+            pages = new ArrayList<>(pages);
+            body.writeInt(pages.size());
+            for (PageIndex.Page page : pages) {
+                body.writeInt(page.getNumber());
+                writeString(body, page.getPath());
+                body.writeInt(page.getTemplate());
+            }
+
+            Map<Integer, Integer> parents = PortalIndex.getInstance().getParentsIfLoaded();
+            if (parents == null) {
+                body.writeInt(-1);
+            } else {
+                body.writeInt(parents.size());
+                for (Map.Entry<Integer, Integer> e : parents.entrySet()) {
+                    body.writeInt(e.getKey());
+                    body.writeInt(e.getValue());
+                }
+            }
+
+            int[] articles = ArticleIndex.getInstance().getNumbers();
+            if (articles == null) {
+                body.writeInt(-1);
+            } else {
+                body.writeInt(articles.length);
+                for (int number : articles) {
+                    body.writeInt(number);
+                }
+            }
+            body.flush();
+            out.writeLong(crc.getValue());
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote snapshot of " + pages.size() + " pages to " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fills the indexes from the snapshot, if there is a valid one.
+     *
+     * @return whether the indexes were restored
+     */
+    public synchronized boolean restore() {
+        File file = getFile();
+        if (! file.isFile()) {
+            log.service("No snapshot " + file + ", reading indexes from the database");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 24 || buffer.getInt() != MAGIC) {
+                log.warn("Snapshot " + file + " is no index snapshot, ignoring it");
+                return false;
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                log.service("Snapshot " + file + " has version " + version + " instead of " + VERSION + ", ignoring it");
+                return false;
+            }
+            long time = buffer.getLong();
+
+            ByteBuffer body = buffer.slice();
+            body.limit(body.limit() - 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (buffer.getLong(buffer.limit() - 8) != crc.getValue()) {
+                log.warn("Snapshot " + file + " is corrupt, ignoring it");
+                return false;
+            }
+
+            List<TemplateCache.Template> templates = new ArrayList<>();
+            for (int i = body.getInt(); i > 0; i--) {
+                templates.add(new TemplateCache.Template(body.getInt(), readString(body), readString(body)));
+            }
+            List<int[]> pageNumbers = new ArrayList<>();
+            List<String> pagePaths = new ArrayList<>();
+            for (int i = body.getInt(); i > 0; i--) {
+                int number = body.getInt();
+                pagePaths.add(readString(body));
+                pageNumbers.add(new int[] {number, body.getInt()});
+            }
+            Map<Integer, Integer> parents = null;
+            int size = body.getInt();
+            if (size >= 0) {
+                parents = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    parents.put(body.getInt(), body.getInt());
+                }
+            }
+            int[] articles = null;
+            size = body.getInt();
+            if (size >= 0) {
+                articles = new int[size];
+                body.asIntBuffer().get(articles);
+            }
+
+            TemplateCache.getInstance().restore(templates);
+            List<PageIndex.Page> pages = new ArrayList<>(pageNumbers.size());
+            for (int i = 0; i < pageNumbers.size(); i++) {
+                pages.add(new PageIndex.Page(pageNumbers.get(i)[0], pagePaths.get(i), pageNumbers.get(i)[1]));
+            }
+            PageIndex.getInstance().restore(pages);
+            if (parents != null) {
+                PortalIndex.getInstance().restore(parents);
+            }
+            if (articles != null) {
+                ArticleIndex.getInstance().restore(articles);
+            }
+            restored = time - MARGIN;
+            log.service("Restored indexes from snapshot of " + new Date(time) + " in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read snapshot " + file + ", reading indexes from the database: " + e.getMessage(), e);
+            TemplateCache.getInstance().clear();
+            PageIndex.getInstance().clear();
+            PortalIndex.getInstance().clear();
+            ArticleIndex.getInstance().clear();
+            return false;
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ along with MMBase. If not, see <http://www.gnu.org/licenses/>.
 package org.mmbase.mmsite;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -61,8 +62,27 @@ public class LocaleUtil implements SystemEventListener {
     }
 
 
-    private final List<Locale> displayLocales = new ArrayList<>();
-    private final List<Locale> acceptedLocales = new ArrayList<>();
+    private static final int NEGOTIATED_MAX = 1000;
+
+    /**
+     * The configured locales and what is derived from them. On reconfiguration a new one replaces
+     * it as a whole, so requests always see a consistent configuration without locking.
+     */
+    private static final class Config {
+        final List<Locale> displayLocales;
+        final List<Locale> acceptedLocales;
+        final Set<Locale> acceptedSet;
+        /* Accept-Language header -> negotiated locale */
+        final Map<String, Locale> negotiated = new ConcurrentHashMap<>();
+
+        Config(List<Locale> displayLocales, List<Locale> acceptedLocales) {
+            this.displayLocales = Collections.unmodifiableList(new ArrayList<>(displayLocales));
+            this.acceptedLocales = Collections.unmodifiableList(new ArrayList<>(acceptedLocales));
+            this.acceptedSet = new HashSet<>(acceptedLocales);
+        }
+    }
+
+    private volatile Config config = new Config(Collections.<Locale>emptyList(), Collections.<Locale>emptyList());
 
     private Map<String, String> properties;
     {
@@ -87,18 +107,13 @@ public class LocaleUtil implements SystemEventListener {
             .getProperties();
     }
 
-    protected void configure() {
+    protected synchronized void configure() {
         if (properties != null) {
-            {
-                String d = properties.get("displayLocales");
-                log.info("Locales displayed: " + d);
-                setDisplayLocales(d);
-            }
-            {
-                String a = properties.get("acceptedLocales");
-                log.info("Locales accepted: " + a);
-                setAcceptedLocales(a);
-            }
+            String d = properties.get("displayLocales");
+            log.info("Locales displayed: " + d);
+            String a = properties.get("acceptedLocales");
+            log.info("Locales accepted: " + a);
+            config = new Config(getLocales(d), getLocales(a));
         }
     }
 
@@ -106,10 +121,11 @@ public class LocaleUtil implements SystemEventListener {
      * now add also degraded locales, if not yet present
      */
     protected static Collection<Locale> addDegraded(Collection<Locale> locales) {
+        Set<Locale> present = new HashSet<>(locales);
         for (Locale original : new ArrayList<>(locales)) {
             Locale loc = LocalizedString.degrade(original, original);
             while (loc != null) {
-                if (! locales.contains(loc)) {
+                if (present.add(loc)) {
                     locales.add(loc);
                 }
                 loc = LocalizedString.degrade(loc, original);
@@ -138,26 +154,24 @@ public class LocaleUtil implements SystemEventListener {
         return result;
     }
 
-    public void setDisplayLocales(String s) {
-        displayLocales.clear();
-        displayLocales.addAll(getLocales(s));
+    public synchronized void setDisplayLocales(String s) {
+        config = new Config(getLocales(s), config.acceptedLocales);
     }
 
     public List<Locale> getDisplayLocales() {
-        return Collections.unmodifiableList(displayLocales);
+        return config.displayLocales;
     }
 
-    public void setAcceptedLocales(String s) {
-        acceptedLocales.clear();
-        acceptedLocales.addAll(getLocales(s));
+    public synchronized void setAcceptedLocales(String s) {
+        config = new Config(config.displayLocales, getLocales(s));
     }
     public List<Locale> getAcceptedLocales() {
-        return Collections.unmodifiableList(acceptedLocales);
+        return config.acceptedLocales;
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean isMultiLanguage() {
-        return !displayLocales.isEmpty();
+        return !config.displayLocales.isEmpty();
     }
 
 
@@ -184,95 +198,163 @@ public class LocaleUtil implements SystemEventListener {
         }
     }
 
-    public void appendLanguage(StringBuilder buf, Parameters frameworkParameters) {
-        if (! isMultiLanguage()) return;
-        Locale locParam = frameworkParameters.get(LOCALE);
+    /**
+     * The language to append to an url, which is the locale parameter or else the language explicitly
+     * requested (see {@link #EXPLICIT_LOCALE_KEY}).
+     *
+     * @return language code or null if there is none
+     */
+    public String getLanguage(Parameters frameworkParameters) {
+        if (! isMultiLanguage()) return null;
+        return getLanguage(frameworkParameters.get(Parameter.REQUEST), frameworkParameters.get(LOCALE));
+    }
+
+    /**
+     * @param request   The request, in which the language might be set explicitly
+     * @param locParam  The locale to use, may be null
+     * @return language code or null if there is none
+     */
+    public String getLanguage(HttpServletRequest request, Locale locParam) {
+        if (! isMultiLanguage()) return null;
         String locale;
         if (locParam != null) {
             locale = locParam.toString();
         } else {
-            HttpServletRequest request = frameworkParameters.get(Parameter.REQUEST);
             locale = (String) request.getAttribute(EXPLICIT_LOCALE_KEY);
         }
-        if (locale != null && !locale.isEmpty()) {
-            buf.append(".").append(locale);
+        return locale == null || locale.isEmpty() ? null : locale;
+    }
+
+    public void appendLanguage(StringBuilder buf, Parameters frameworkParameters) {
+        appendLanguage(buf, getLanguage(frameworkParameters));
+    }
+
+    public void appendLanguage(StringBuilder buf, String language) {
+        if (language != null && !language.isEmpty()) {
+            buf.append(".").append(language);
         }
     }
     private final Pattern LANG_PATTERN = Pattern.compile("[a-z]{2,3}(_[A-Z]{2})?");
 
+    /**
+     * Whether the characters from <code>start</code> to <code>end</code> look like a language code, f.e. 'nl' or 'en_US'.
+     */
+    boolean isLanguage(CharSequence s, int start, int end) {
+        return LANG_PATTERN.matcher(s).region(start, end).matches();
+    }
+
     public String setLanguage(String path, HttpServletRequest request) {
-        if (! isMultiLanguage()) return path;
+        Config c = config;
+        if (c.displayLocales.isEmpty()) return path;
 
         int lastDot = path.lastIndexOf(".");
         if (lastDot >= 0) {
-            String  language = path.substring(lastDot + 1);
-            if ( ! LANG_PATTERN.matcher(language).matches()) {
+            if (! isLanguage(path, lastDot + 1, path.length())) {
                 return path;
             }
-            // Try using LocalizedString first, but fall back to Java's Locale creation
-            Locale locale = null;
+            setExplicitLanguage(c, path.substring(lastDot + 1), path, request);
+            return path.substring(0, lastDot);
+        } else {
+            setInferredLanguage(c, request);
+            return path;
+        }
+    }
+
+    /**
+     * Like {@link #setLanguage(String, HttpServletRequest)}, but with a path that was already parsed.
+     * Sets the language of the request, explicitly when the path ends with one and otherwise the one
+     * negotiated from the Accept-Language header. When the last segment has an extension that is
+     * no language nothing is set.
+     */
+    public void setLanguage(RequestPath path, HttpServletRequest request) {
+        Config c = config;
+        if (c.displayLocales.isEmpty()) return;
+
+        if (path.getLanguage() != null) {
+            setExplicitLanguage(c, path.getLanguage(), path.getPath(), request);
+        } else if (! path.isDotted()) {
+            setInferredLanguage(c, request);
+        }
+    }
+
+    private void setExplicitLanguage(Config c, String language, String path, HttpServletRequest request) {
+        // Try using LocalizedString first, but fall back to Java's Locale creation
+        Locale locale = null;
+        try {
+            locale = LocalizedString.getLocale(language);
+        } catch (RuntimeException e) {
+            log.debug("LocalizedString.getLocale failed for '" + language + "', falling back to Locale.forLanguageTag/new Locale", e);
+        }
+        if (locale == null) {
+            // Try Java 7+ language tag parsing (replace '_' with '-') then fallback to simple constructor
             try {
-                locale = LocalizedString.getLocale(language);
-            } catch (RuntimeException e) {
-                log.debug("LocalizedString.getLocale failed for '" + language + "', falling back to Locale.forLanguageTag/new Locale", e);
+                locale = Locale.forLanguageTag(language.replace('_', '-'));
+            } catch (Throwable t) {
+                // If for some reason forLanguageTag isn't available, use the simple constructor
+                locale = new Locale(language);
             }
             if (locale == null) {
-                // Try Java 7+ language tag parsing (replace '_' with '-') then fallback to simple constructor
-                try {
-                    locale = Locale.forLanguageTag(language.replace('_', '-'));
-                } catch (Throwable t) {
-                    // If for some reason forLanguageTag isn't available, use the simple constructor
-                    locale = new Locale(language);
-                }
-                if (locale == null) {
-                    locale = new Locale(language);
+                locale = new Locale(language);
+            }
+        }
+        if (! c.acceptedSet.isEmpty() && ! c.acceptedSet.contains(locale)) {
+            throw new NotFoundException("Locale '" + language + "' is not supported (path: " + path + ")");
+        }
+
+        request.setAttribute(EXPLICIT_LOCALE_KEY, locale.toString());
+        request.setAttribute(LOCALE_KEY, locale);
+    }
+
+    private void setInferredLanguage(Config c, HttpServletRequest request) {
+        request.setAttribute(EXPLICIT_LOCALE_KEY, "");
+        String header = request.getHeader("Accept-Language");
+        String key = header == null ? "" : header;
+        Locale inferredLocale = c.negotiated.get(key);
+        if (inferredLocale == null) {
+            inferredLocale = negotiate(c, request, header != null);
+            if (c.negotiated.size() >= NEGOTIATED_MAX) {
+                log.debug("More than " + NEGOTIATED_MAX + " Accept-Language headers seen, starting over");
+                c.negotiated.clear();
+            }
+            c.negotiated.put(key, inferredLocale);
+        }
+        request.setAttribute(LOCALE_KEY, inferredLocale);
+    }
+
+    /**
+     * Matches the locales the user prefers (and the ones they degrade to) with the accepted locales,
+     * or takes the first display locale if there is no match.
+     */
+    private Locale negotiate(Config c, HttpServletRequest request, boolean hasHeader) {
+        Locale inferredLocale = null;
+        List<Locale> proposals = (List<Locale>) addDegraded(Collections.list(request.getLocales()));
+        if (log.isDebugEnabled()) {
+            log.debug("Matching " + proposals + " to " + c.displayLocales);
+        }
+        if (c.acceptedSet.isEmpty()) {
+            if (hasHeader) {
+                inferredLocale = proposals.get(0);
+            }
+        } else {
+            for (Locale proposal : proposals) {
+                log.trace("Considering user preference " + proposal);
+                if (c.acceptedSet.contains(proposal)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(proposal + " is a  hit!");
+                    }
+                    inferredLocale = proposal;
+                    break;
                 }
             }
-             if (! acceptedLocales.isEmpty() && ! acceptedLocales.contains(locale)) {
-                 throw new NotFoundException("Locale '" + language + "' is not supported (path: " + path + ")");
-             }
-
-             request.setAttribute(EXPLICIT_LOCALE_KEY, locale.toString());
-             request.setAttribute(LOCALE_KEY, locale);
-             return path.substring(0, lastDot);
-         } else {
-             request.setAttribute(EXPLICIT_LOCALE_KEY, "");
-             Locale inferredLocale = null;
-             if (log.isDebugEnabled()) {
-                 log.debug("Matching " + addDegraded(Collections.list(request.getLocales())) + " to " + displayLocales);
-             }
-             if (acceptedLocales.isEmpty()) {
-                 if (request.getHeader("Accept-Language") != null ){
-                     inferredLocale = (Locale) Collections.list(request.getLocales()).get(0);
-                 }
-             } else {
-                 LOC:
-                 for (Locale proposal : (List<Locale>) addDegraded(Collections.list(request.getLocales()))) {
-                     log.trace("Considering user preference " + proposal);
-                     for (Locale serverLocale : acceptedLocales) {
-                         log.trace("Comparing with " + serverLocale);
-                         if (serverLocale.equals(proposal)) {
-                             if (log.isDebugEnabled()) {
-                                 log.debug(proposal + " is a  hit!");
-                             }
-                             inferredLocale = proposal;
-                             break LOC;
-                         }
-                     }
-                 }
-             }
-             if (inferredLocale == null) {
-                 inferredLocale = displayLocales.get(0);
-                 if (log.isDebugEnabled()) {
-                     log.debug("No hit found, taking " + inferredLocale);
-                 }
-
-             }
-             request.setAttribute(LOCALE_KEY, inferredLocale);
-
-             return path;
-         }
-     }
+        }
+        if (inferredLocale == null) {
+            inferredLocale = c.displayLocales.get(0);
+            if (log.isDebugEnabled()) {
+                log.debug("No hit found, taking " + inferredLocale);
+            }
+        }
+        return inferredLocale;
+    }
 
 
  }
@@ -0,0 +1,221 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+
+import org.mmbase.cache.Cache;
+import org.mmbase.core.event.*;
+import org.mmbase.framework.Block;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Cache for the nice urls generated by {@link SiteUrlConverter} and {@link ArticlesUrlConverter}.
+ * Keys combine the converter, the block, the node, the language and the extension settings, values
+ * are the finished part of the url that is appended by the converter.
+ * An entry is removed when the 'path' of its page or the 'title' of its article changes, or when a
+ * 'posrel' between a page and the article is created, changed or deleted. The keys of the urls are
+ * indexed by the node and the page they contain, so that does not go through the whole cache. Keys
+ * of urls that were evicted remain in the index until it has grown to twice the size of the cache,
+ * then it is made again from what is in the cache.
+ * Like other MMBase caches its size can be configured in 'caches.xml' under the name 'MMSiteNiceUrls',
+ * by default it holds 5000 urls and evicts the least recently used.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class NiceUrlCache extends Cache<String, NiceUrlCache.Entry> implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(NiceUrlCache.class);
+
+    private static final NiceUrlCache instance = new NiceUrlCache(5000);
+    static {
+        instance.putCache();
+    }
+
+    public static NiceUrlCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * A cached url, with the node and page it was generated from.
+     */
+    public static final class Entry {
+        private final int node;
+        private final int page;
+        private final String url;
+
+        public Entry(int node, int page, String url) {
+            this.node = node;
+            this.page = page;
+            this.url = url;
+        }
+        public int getNode() {
+            return node;
+        }
+        /**
+         * @return Number of the page whose path is part of the url, or <code>-1</code>
+         */
+        public int getPage() {
+            return page;
+        }
+        public String getUrl() {
+            return url;
+        }
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    /* node or page -> keys of the urls containing it, guarded by this */
+    private final Map<Integer, Set<String>> keysByNode = new HashMap<>();
+    /* number of keys in keysByNode */
+    private int indexed = 0;
+
+    private NiceUrlCache(int size) {
+        super(size);
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    @Override
+    public String getName() {
+        return "MMSiteNiceUrls";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Nice urls of pages and articles in MMSite";
+    }
+
+    /**
+     * @param converter The UrlConverter generating the url
+     * @param block     The block linked to
+     * @param node      The node linked to
+     * @param language  Language appended to the url, may be <code>null</code>
+     * @param settings  Anything else influencing the url, like the extension
+     */
+    public static String key(Object converter, Block block, int node, String language, String settings) {
+        return new StringBuilder(converter.getClass().getSimpleName())
+            .append(':').append(block.getName())
+            .append(':').append(node)
+            .append(':').append(language == null ? "" : language)
+            .append(':').append(settings)
+            .toString();
+    }
+
+    @Override
+    public synchronized Entry put(String key, Entry value) {
+        Entry previous = super.put(key, value);
+        index(key, value);
+        if (indexed > 2 * maxSize()) {
+            reindex();
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        keysByNode.clear();
+        indexed = 0;
+    }
+
+    /* guarded by this */
+    private void index(String key, Entry entry) {
+        if (keysByNode.computeIfAbsent(entry.getNode(), k -> new HashSet<>()).add(key)) {
+            indexed++;
+        }
+        if (entry.getPage() >= 0 && entry.getPage() != entry.getNode()
+            && keysByNode.computeIfAbsent(entry.getPage(), k -> new HashSet<>()).add(key)) {
+            indexed++;
+        }
+    }
+
+    /* guarded by this */
+    private void reindex() {
+        keysByNode.clear();
+        indexed = 0;
+        try {
+            for (Map.Entry<String, Entry> e : new ArrayList<>(entrySet())) {
+                index(e.getKey(), e.getValue());
+            }
+        } catch (ConcurrentModificationException cme) {
+            log.debug("Cache changed while indexing it, clearing it");
+            clear();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Indexed " + indexed + " urls of " + keysByNode.size() + " nodes");
+        }
+    }
+
+    /**
+     * Removes all urls that contain something of this node, either because they link to it or because the
+     * path of this (page) node is part of them.
+     */
+    public synchronized void invalidate(int number) {
+        Set<String> keys = keysByNode.remove(number);
+        if (keys == null) {
+            return;
+        }
+        indexed -= keys.size();
+        int removed = 0;
+        for (String key : keys) {
+            if (remove(key) != null) {
+                removed++;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Removed " + removed + " urls of #" + number);
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (isEmpty()) return;
+        String builder = event.getBuilderName();
+        String field;
+        if ("pages".equals(builder)) {
+            field = "path";
+        } else if ("articles".equals(builder)) {
+            field = "title";
+        } else {
+            return;
+        }
+        if (event.getType() == Event.TYPE_DELETE || event.getChangedFields().contains(field)) {
+            invalidate(event.getNodeNumber());
+        }
+    }
+
+    @Override
+    public void notify(RelationEvent event) {
+        if (isEmpty()) return;
+        if ("posrel".equals(event.getNodeEvent().getBuilderName())
+            && "pages".equals(event.getRelationSourceType())
+            && "articles".equals(event.getRelationDestinationType())) {
+            invalidate(event.getRelationDestinationNumber());
+        }
+    }
+
+}
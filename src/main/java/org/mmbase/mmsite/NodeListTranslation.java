@@ -0,0 +1,160 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2011 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.storage.search.RelationStep;
+import org.mmbase.storage.search.Step;
+import org.mmbase.storage.search.StepField;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Translates a list of nodes at once, like {@link NodeTranslation} does for one node. For listings this
+ * saves a lookup per node: the translations of all nodes, in all locales the requested locale degrades to,
+ * are found with one query over 'langrel' per translations builder, and the translation nodes themselves
+ * are read with one more query.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class NodeListTranslation {
+    private static final Logger log = Logging.getLoggerInstance(NodeListTranslation.class);
+
+    private NodeListTranslation() {
+    }
+
+    /**
+     * The translated nodes, see {@link TranslatedNode}, in the same order. Nodes without translation are
+     * returned as they are, like the whole list when there is no locale to translate to.
+     *
+     * @param  nodes  The nodes to translate
+     * @param  locale The wanted locale
+     * @return list with translated nodes
+     */
+    public static NodeList translate(NodeList nodes, Locale locale) {
+        if (nodes.isEmpty() || locale == null) {
+            return nodes;
+        }
+        List<String> languages = NodeTranslation.getLanguages(locale);
+        if (languages.isEmpty()) {
+            // no language to translate to, nothing to query
+            return nodes;
+        }
+        Cloud cloud = nodes.getNode(0).getCloud();
+        TranslationCache cache = TranslationCache.getInstance();
+
+        Map<Integer, Node> translations = new HashMap<>();
+        Map<String, Set<Integer>> missing = new HashMap<>();
+        for (Node node : nodes) {
+            Integer cached = cache.get(TranslationCache.key(node.getNumber(), locale));
+            if (cached == null) {
+                String key = node.getNodeManager().getName() + "," + NodeTranslation.getTranslationsManager(node).getName();
+                missing.computeIfAbsent(key, k -> new TreeSet<>()).add(node.getNumber());
+            } else if (! TranslationCache.NONE.equals(cached)) {
+                translations.put(node.getNumber(), cloud.getNode(cached));
+            }
+        }
+
+        for (Map.Entry<String, Set<Integer>> e : missing.entrySet()) {
+            String[] managers = e.getKey().split(",");
+            try {
+                translations.putAll(getTranslations(cloud.getNodeManager(managers[0]), cloud.getNodeManager(managers[1]), e.getValue(), languages, locale));
+            } catch (Exception ex) {
+                log.error("Exception while building query: " + ex);
+            }
+        }
+
+        NodeList result = cloud.createNodeList();
+        for (Node node : nodes) {
+            Node translation = translations.get(node.getNumber());
+            result.add(translation == null ? node : new TranslatedNode(node, translation));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the best translations of nodes of one type and puts them in the {@link TranslationCache}.
+     *
+     * @return map of node number to its translation, untranslated nodes are not in it
+     */
+    private static Map<Integer, Node> getTranslations(NodeManager nm, NodeManager translationsNM, Set<Integer> numbers, List<String> languages, Locale locale) {
+        Cloud cloud = nm.getCloud();
+        Query query = cloud.createQuery();
+        Step step = query.addStep(nm);
+        RelationStep relationStep = query.addRelationStep(translationsNM, "langrel", "destination");
+        Step translationStep = relationStep.getNext();
+        StepField numberField = query.addField(step, nm.getField("number"));
+        query.addField(translationStep, translationsNM.getField("number"));
+        StepField languageField = query.addField(translationStep, translationsNM.getField("language"));
+        Queries.addConstraint(query, query.createConstraint(numberField, new TreeSet<>(numbers)));
+        Queries.addConstraint(query, query.createConstraint(languageField, new TreeSet<>(languages)));
+        if (log.isTraceEnabled()) {
+            log.trace("query: " + query.toSql());
+        }
+
+        Map<Integer, Integer> best = new HashMap<>();
+        Map<Integer, Integer> bestIndex = new HashMap<>();
+        for (Node clusterNode : cloud.getList(query)) {
+            int number = clusterNode.getIntValue(nm.getName() + ".number");
+            int index = languages.indexOf(clusterNode.getStringValue(translationsNM.getName() + ".language"));
+            Integer previous = bestIndex.get(number);
+            if (index >= 0 && (previous == null || index < previous)) {
+                bestIndex.put(number, index);
+                best.put(number, clusterNode.getIntValue(translationsNM.getName() + ".number"));
+            }
+        }
+
+        Map<Integer, Node> result = new HashMap<>();
+        if (! best.isEmpty()) {
+            NodeQuery nodeQuery = translationsNM.createQuery();
+            StepField translationNumber = nodeQuery.getStepField(translationsNM.getField("number"));
+            Queries.addConstraint(nodeQuery, nodeQuery.createConstraint(translationNumber, new TreeSet<>(best.values())));
+            Map<Integer, Node> translationNodes = new HashMap<>();
+            for (Node translation : translationsNM.getList(nodeQuery)) {
+                translationNodes.put(translation.getNumber(), translation);
+            }
+            for (Map.Entry<Integer, Integer> e : best.entrySet()) {
+                Node translation = translationNodes.get(e.getValue());
+                if (translation != null) {
+                    result.put(e.getKey(), translation);
+                }
+            }
+        }
+
+        TranslationCache cache = TranslationCache.getInstance();
+        for (Integer number : numbers) {
+            Node translation = result.get(number);
+            cache.put(TranslationCache.key(number, locale), translation == null ? TranslationCache.NONE : translation.getNumber());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Found " + result.size() + " translations in " + languages + " for " + numbers.size() + " " + nm.getName());
+        }
+        return result;
+    }
+
+}
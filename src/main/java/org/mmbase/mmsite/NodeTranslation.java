@@ -29,8 +29,7 @@ import org.mmbase.util.functions.NodeFunction;
 import org.mmbase.util.functions.Parameter;
 import org.mmbase.util.functions.Parameters;
 import org.mmbase.util.LocalizedString;
-import org.mmbase.bridge.util.NodeMap;
-import org.mmbase.bridge.util.MapNode;
+import org.mmbase.storage.search.StepField;
 import org.mmbase.util.logging.Logger;
 import org.mmbase.util.logging.Logging;
 
@@ -42,7 +41,7 @@ import org.mmbase.util.logging.Logging;
  * otherwise a nodemanager will be guessed by appending '_translations'.
  * Only the translatable fields are part of 'articles_translations', fields like dates etc. are
  * ommited. The same untranslated node is returned when no translation is found.
- * If a field is not translated (yet), the value of the original node is used.
+ * If a field is not translated (yet), the value of the original node is used, see {@link TranslatedNode}.
  *
  * @author Andr&eacute; van Toly
  * @version $Id: NodeTranslation.java 45648 2011-04-04 19:00:18Z andre $
@@ -58,70 +57,102 @@ public final class NodeTranslation extends NodeFunction<Node> {
 
     @Override
     public Node getFunctionValue(Node node, Parameters parameters) {
-        Node translation = null;
-        Cloud cloud = node.getCloud();
+        Node translation = getTranslation(node, parameters.get(Parameter.LOCALE));
+        return translation == null ? node : new TranslatedNode(node, translation);
+    }
+
+    /**
+     * The locale and the locales it degrades to, f.e. 'nl_BE' and 'nl', best match first.
+     */
+    protected static List<String> getLanguages(Locale locale) {
+        List<String> result = new ArrayList<>();
+        Locale loc = locale;
+        while (loc != null) {
+            result.add(loc.toString());
+            loc = LocalizedString.degrade(loc, locale);
+        }
+        return result;
+    }
+
+    /**
+     * The translations builder of a node, the property 'translations.builder' or else its own
+     * name with '_translations' appended.
+     */
+    protected static NodeManager getTranslationsManager(Node node) {
         NodeManager nm = node.getNodeManager();
         String translations_builder = nm.getProperty("translations.builder");
         if (translations_builder == null) {
             translations_builder = nm.getName() + "_translations";
         }
-        NodeManager translationsNM = cloud.getNodeManager(translations_builder);
-
-        Locale loc = parameters.get(Parameter.LOCALE);
-        Locale oriloc = loc;
-        String lang = loc.toString();
-
-        try {
-            while (loc != null && translation == null) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Trying to find a translation in: " + loc.toString());
-                }
-                Query query = Queries.createRelatedNodesQuery(node, translationsNM, "langrel", "destination");
-                Queries.addConstraint(query, Queries.createConstraint(query, "language", Queries.getOperator("EQUAL"), loc.toString(), null, true));
-                if (log.isTraceEnabled()) {
-                    log.trace("query: " + query.toSql());
-                }
-
-                NodeList nl = cloud.getList(query);
-                if (nl.size() > 1) {
-                    log.warn(nl.size() + " translations found in '" + lang + "' for node " + node.getNumber() + " !");
-                }
-
-                if (!nl.isEmpty()) {
-                    Node clusterNode = nl.getNode(0); // clusternode
-                    translation = cloud.getNode(clusterNode.getIntValue(translationsNM.getName() + ".number"));
-
-                    if (log.isDebugEnabled()) {
-                        log.debug("Found: " + node.getNumber());
-                    }
-                } else {
-                    loc = LocalizedString.degrade(loc, oriloc);
-                }
+        return node.getCloud().getNodeManager(translations_builder);
+    }
+
+    /* concurrent lookups of the same translation wait for each other */
+    private static final SingleFlight<String, Integer> loading = new SingleFlight<>("translations", 10000);
+
+    /**
+     * Finds the translation of a node that best matches the locale. The translations in all locales
+     * the requested locale degrades to are queried at once, and the result is kept in the
+     * {@link TranslationCache}.
+     *
+     * @param  node   The node to translate
+     * @param  locale The wanted locale
+     * @return the translation or null if there is none
+     */
+    protected static Node getTranslation(Node node, Locale locale) {
+        Cloud cloud = node.getCloud();
+        TranslationCache cache = TranslationCache.getInstance();
+        String key = TranslationCache.key(node.getNumber(), locale);
+        Integer cached = cache.get(key);
+        if (cached == null) {
+            try {
+                cached = node.getNumber() > 0 ? loading.get(key, () -> findTranslation(node, locale, key)) : findTranslation(node, locale, key);
+            } catch (Exception e) {
+                log.error("Exception while building query: " + e);
+                return null;
             }
+        }
+        return TranslationCache.NONE.equals(cached) ? null : cloud.getNode(cached);
+    }
 
-        } catch (Exception e) {
-            log.error("Exception while building query: " + e);
+    /**
+     * Queries the translation and puts it in the cache.
+     *
+     * @return number of the translation or {@link TranslationCache#NONE}
+     */
+    private static Integer findTranslation(Node node, Locale locale, String key) {
+        Node translation = null;
+        List<String> languages = getLanguages(locale);
+        if (log.isDebugEnabled()) {
+            log.debug("Trying to find a translation in: " + languages);
+        }
+        NodeManager translationsNM = getTranslationsManager(node);
+        NodeQuery query = Queries.createRelatedNodesQuery(node, translationsNM, "langrel", "destination");
+        StepField languageField = query.getStepField(translationsNM.getField("language"));
+        Queries.addConstraint(query, query.createConstraint(languageField, new TreeSet<>(languages)));
+        if (log.isTraceEnabled()) {
+            log.trace("query: " + query.toSql());
         }
 
-        Map<String, Object> map = new HashMap<>(new NodeMap(node));
-        if (translation != null) {
-
-            Map<String, Object> translationMap = new NodeMap(translation);
-            for (Map.Entry<String, Object> e : translationMap.entrySet()) {
-                // overwrite only non-empty and non-system fields
-                String fldName = e.getKey();
-                if (!"number".equals(fldName) &&
-                    !"owner".equals(fldName) &&
-                    !"otype".equals(fldName) &&
-                    !"language".equals(fldName) &&
-                    e.getValue() != null && !"".equals(e.getValue())) {
-
-                    map.put(fldName, e.getValue());
-                }
+        int best = languages.size();
+        for (Node tr : translationsNM.getList(query)) {
+            int index = languages.indexOf(tr.getStringValue("language"));
+            if (index == best) {
+                log.warn("More translations found in '" + languages.get(index) + "' for node " + node.getNumber() + " !");
+            } else if (index >= 0 && index < best) {
+                best = index;
+                translation = tr;
             }
         }
+        if (log.isDebugEnabled() && translation != null) {
+            log.debug("Found: " + translation.getNumber());
+        }
 
-        return new MapNode<>(map, cloud);
+        Integer result = translation == null ? TranslationCache.NONE : translation.getNumber();
+        if (node.getNumber() > 0) {
+            TranslationCache.getInstance().put(key, result);
+        }
+        return result;
     }
 
 }
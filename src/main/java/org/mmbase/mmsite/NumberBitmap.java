@@ -0,0 +1,313 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Compact set of node numbers, in the manner of a 'roaring' bitmap. Numbers are grouped by their
+ * upper 16 bits. A group with few numbers keeps them in a sorted array of chars, a group with more
+ * than {@link #ARRAY_MAX} in a bitmap of 8 kB, so a million numbers take about 2 MB at most.
+ * Reading needs no locking. Groups are never changed, a change replaces the group.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+final class NumberBitmap {
+
+    static final int ARRAY_MAX = 4096;
+
+    private abstract static class Container {
+        abstract boolean contains(char low);
+        /* returns this if already present */
+        abstract Container add(char low);
+        /* returns this if not present, null if it became empty */
+        abstract Container remove(char low);
+        abstract int cardinality();
+        abstract long bytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+        final char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int index = Arrays.binarySearch(values, low);
+            if (index >= 0) {
+                return this;
+            }
+            if (values.length >= ARRAY_MAX) {
+                return BitmapContainer.of(values, values.length).add(low);
+            }
+            int insert = -index - 1;
+            char[] result = new char[values.length + 1];
+            System.arraycopy(values, 0, result, 0, insert);
+            result[insert] = low;
+            System.arraycopy(values, insert, result, insert + 1, values.length - insert);
+            return new ArrayContainer(result);
+        }
+
+        @Override
+        Container remove(char low) {
+            int index = Arrays.binarySearch(values, low);
+            if (index < 0) {
+                return this;
+            }
+            if (values.length == 1) {
+                return null;
+            }
+            char[] result = new char[values.length - 1];
+            System.arraycopy(values, 0, result, 0, index);
+            System.arraycopy(values, index + 1, result, index, values.length - index - 1);
+            return new ArrayContainer(result);
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        long bytes() {
+            return 16 + 2L * values.length;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words;
+        final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static BitmapContainer of(char[] values, int length) {
+            long[] words = new long[1024];
+            for (int i = 0; i < length; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, length);
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            if (contains(low)) {
+                return this;
+            }
+            long[] result = words.clone();
+            result[low >>> 6] |= 1L << low;
+            return new BitmapContainer(result, cardinality + 1);
+        }
+
+        @Override
+        Container remove(char low) {
+            if (! contains(low)) {
+                return this;
+            }
+            if (cardinality - 1 <= ARRAY_MAX) {
+                char[] values = new char[cardinality - 1];
+                int i = 0;
+                for (int w = 0; w < words.length; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        char value = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                        if (value != low) {
+                            values[i++] = value;
+                        }
+                        word &= word - 1;
+                    }
+                }
+                return new ArrayContainer(values);
+            }
+            long[] result = words.clone();
+            result[low >>> 6] &= ~(1L << low);
+            return new BitmapContainer(result, cardinality - 1);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long bytes() {
+            return 16 + 8L * words.length;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Container> containers;
+
+    NumberBitmap() {
+        containers = new AtomicReferenceArray<>(0);
+    }
+
+    /**
+     * @param sorted Numbers in ascending order, negative ones are ignored
+     * @param length How many of them to use
+     */
+    static NumberBitmap of(int[] sorted, int length) {
+        NumberBitmap bitmap = new NumberBitmap();
+        int begin = 0;
+        while (begin < length && sorted[begin] < 0) begin++;
+        if (begin == length) {
+            return bitmap;
+        }
+        AtomicReferenceArray<Container> result = new AtomicReferenceArray<>((sorted[length - 1] >>> 16) + 1);
+        char[] values = new char[length - begin];
+        while (begin < length) {
+            int high = sorted[begin] >>> 16;
+            int count = 0;
+            int i = begin;
+            for (; i < length && sorted[i] >>> 16 == high; i++) {
+                char low = (char) sorted[i];
+                if (count == 0 || values[count - 1] != low) {
+                    values[count++] = low;
+                }
+            }
+            result.set(high, count > ARRAY_MAX ? BitmapContainer.of(values, count) : new ArrayContainer(Arrays.copyOf(values, count)));
+            begin = i;
+        }
+        bitmap.containers = result;
+        return bitmap;
+    }
+
+    boolean contains(int number) {
+        if (number < 0) {
+            return false;
+        }
+        AtomicReferenceArray<Container> c = containers;
+        int high = number >>> 16;
+        if (high >= c.length()) {
+            return false;
+        }
+        Container container = c.get(high);
+        return container != null && container.contains((char) number);
+    }
+
+    synchronized void add(int number) {
+        if (number < 0) {
+            return;
+        }
+        int high = number >>> 16;
+        AtomicReferenceArray<Container> c = containers;
+        if (high >= c.length()) {
+            AtomicReferenceArray<Container> grown = new AtomicReferenceArray<>(high + 1);
+            for (int i = 0; i < c.length(); i++) {
+                grown.set(i, c.get(i));
+            }
+            containers = c = grown;
+        }
+        Container container = c.get(high);
+        c.set(high, container == null ? new ArrayContainer(new char[] {(char) number}) : container.add((char) number));
+    }
+
+    synchronized void remove(int number) {
+        if (number < 0) {
+            return;
+        }
+        int high = number >>> 16;
+        AtomicReferenceArray<Container> c = containers;
+        if (high < c.length() && c.get(high) != null) {
+            c.set(high, c.get(high).remove((char) number));
+        }
+    }
+
+    /**
+     * @return all numbers in ascending order
+     */
+    int[] toArray() {
+        AtomicReferenceArray<Container> c = containers;
+        int[] result = new int[cardinality() + 16];
+        int i = 0;
+        for (int high = 0; high < c.length(); high++) {
+            Container container = c.get(high);
+            if (container == null) {
+                continue;
+            }
+            if (result.length - i < container.cardinality()) {
+                // changed meanwhile
+                result = Arrays.copyOf(result, i + container.cardinality() + result.length / 2);
+            }
+            if (container instanceof ArrayContainer) {
+                for (char low : ((ArrayContainer) container).values) {
+                    result[i++] = (high << 16) | low;
+                }
+            } else {
+                long[] words = ((BitmapContainer) container).words;
+                for (int w = 0; w < words.length; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        result[i++] = (high << 16) | (w * 64 + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(result, i);
+    }
+
+    int cardinality() {
+        AtomicReferenceArray<Container> c = containers;
+        int result = 0;
+        for (int i = 0; i < c.length(); i++) {
+            Container container = c.get(i);
+            if (container != null) {
+                result += container.cardinality();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return estimate of the memory used, in bytes
+     */
+    long bytes() {
+        AtomicReferenceArray<Container> c = containers;
+        long result = 16 + 4L * c.length();
+        for (int i = 0; i < c.length(); i++) {
+            Container container = c.get(i);
+            if (container != null) {
+                result += container.bytes();
+            }
+        }
+        return result;
+    }
+
+}
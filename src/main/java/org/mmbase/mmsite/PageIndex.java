@@ -0,0 +1,439 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mmbase.bridge.*;
+import org.mmbase.core.event.*;
+import org.mmbase.storage.search.Step;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Resident index of all 'pages' nodes by their path. It is built once from the 'pages' builder
+ * (only the fields 'number', 'path' and 'template' are queried) and is kept up to date by node
+ * events on 'pages', so resolving a path needs no database access. Each page carries its template
+ * from the {@link TemplateCache}.
+ * Paths are normalized by stripping leading and trailing slashes, so '/news/', '/news' and 'news'
+ * all end up at the same entry. The index also knows the hierarchy of the paths, 'news/new' being
+ * a child of 'news', which is a child of the root ''.
+ * A path that is not in the index, like those of scanners and stale links, is answered from memory as
+ * well, so there is no need for a Bloom filter or a cache of unknown paths in front of it. The number
+ * of lookups and of those that found no page are counted, the function 'pageindex' of the set
+ * 'mmsite' shows them with the size of the index.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class PageIndex implements NodeEventListener {
+    private static final Logger log = Logging.getLoggerInstance(PageIndex.class);
+
+    private static final Page[] EMPTY = new Page[0];
+
+    private static final PageIndex instance = new PageIndex();
+
+    public static PageIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * A page as present in the index.
+     */
+    public static final class Page {
+        private final int number;
+        private final String path;
+        private final int template;
+        private final TemplateCache.Template resolved;
+
+        Page(int number, String path, int template) {
+            this.number = number;
+            this.path = path;
+            this.template = template;
+            this.resolved = template < 0 ? null : TemplateCache.getInstance().get(template);
+        }
+
+        public int getNumber() {
+            return number;
+        }
+        /**
+         * @return The normalized path, without leading and trailing slashes
+         */
+        public String getPath() {
+            return path;
+        }
+        /**
+         * @return Node number of the template, or <code>-1</code> if it has none
+         */
+        public int getTemplate() {
+            return template;
+        }
+        /**
+         * @return The template of the page, or <code>null</code> if it has none or it does not exist
+         */
+        public TemplateCache.Template getResolvedTemplate() {
+            return resolved;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number + " " + path;
+        }
+    }
+
+    private final Map<String, Page[]> byPath = new ConcurrentHashMap<>();
+    private final Map<Integer, Page> byNumber = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> childPaths = new ConcurrentHashMap<>();
+    private final Set<String> pageBuilders = new HashSet<>();
+    private volatile boolean loaded = false;
+    /* pages changed while loading, read again when done */
+    private volatile boolean loading = false;
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private PageIndex() {
+    }
+
+    /**
+     * Strips leading and trailing slashes, '/news/new/' becomes 'news/new' and '/' becomes an
+     * empty String.
+     */
+    public static String normalize(String path) {
+        int begin = 0;
+        int end = path.length();
+        while (begin < end && path.charAt(begin) == '/') begin++;
+        while (end > begin && path.charAt(end - 1) == '/') end--;
+        return path.substring(begin, end);
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    /**
+     * All pages with this path, ordered by node number.
+     *
+     * @param  path A path like '/news/new', leading and trailing slashes are ignored
+     * @return the pages found, an empty array if none
+     */
+    public Page[] getPages(String path) {
+        if (! loaded) {
+            load();
+        }
+        lookups.incrementAndGet();
+        Page[] pages = byPath.get(normalize(path));
+        if (pages == null) {
+            misses.incrementAndGet();
+            return EMPTY;
+        }
+        return pages;
+    }
+
+    /**
+     * @return The page with this node number or <code>null</code> if it is not a known page
+     */
+    public Page getPage(int number) {
+        if (! loaded) {
+            load();
+        }
+        return byNumber.get(number);
+    }
+
+    /**
+     * Reads all pages, which normally happens only once, on first use.
+     */
+    protected synchronized void load() {
+        if (loaded) return;
+        long start = System.currentTimeMillis();
+        Cloud cloud = getCloud();
+
+        NodeManager pages = cloud.getNodeManager("pages");
+        pageBuilders.clear();
+        pageBuilders.add(pages.getName());
+        for (NodeManager descendant : pages.getDescendants()) {
+            pageBuilders.add(descendant.getName());
+        }
+        pending.clear();
+        loading = true;
+
+        Query query = cloud.createQuery();
+        Step step = query.addStep(pages);
+        query.addField(step, pages.getField("number"));
+        query.addField(step, pages.getField("path"));
+        query.addField(step, pages.getField("template"));
+        for (Node n : cloud.getList(query)) {
+            put(new Page(n.getIntValue("pages.number"),
+                         normalize(n.getStringValue("pages.path")),
+                         n.isNull("pages.template") ? -1 : n.getIntValue("pages.template")));
+        }
+
+        loaded = true;
+        loading = false;
+        for (Integer number : pending) {
+            refresh(number);
+        }
+        pending.clear();
+        log.service("Indexed " + byNumber.size() + " pages with " + byPath.size() + " paths and " + TemplateCache.getInstance().size() + " templates in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * @return All pages in the index, an empty collection when it was not read (yet)
+     */
+    public Collection<Page> getAllPages() {
+        return Collections.unmodifiableCollection(byNumber.values());
+    }
+
+    /**
+     * Fills the index with pages read from an {@link IndexSnapshot} instead of from the database.
+     */
+    synchronized void restore(Collection<Page> pages) {
+        clear();
+        for (Page page : pages) {
+            put(page);
+        }
+        loaded = true;
+        log.service("Restored " + byNumber.size() + " pages with " + byPath.size() + " paths");
+    }
+
+    /**
+     * Reads all pages again and replaces the ones that changed. Pages have no field 'lastmodified',
+     * so this is how a restored index is brought up to date.
+     */
+    synchronized void reload() {
+        if (! loaded) {
+            load();
+            return;
+        }
+        Cloud cloud = getCloud();
+        NodeManager pages = cloud.getNodeManager("pages");
+        Query query = cloud.createQuery();
+        Step step = query.addStep(pages);
+        query.addField(step, pages.getField("number"));
+        query.addField(step, pages.getField("path"));
+        query.addField(step, pages.getField("template"));
+        Set<Integer> found = new HashSet<>();
+        int changed = 0;
+        for (Node n : cloud.getList(query)) {
+            Page page = new Page(n.getIntValue("pages.number"),
+                                 normalize(n.getStringValue("pages.path")),
+                                 n.isNull("pages.template") ? -1 : n.getIntValue("pages.template"));
+            found.add(page.getNumber());
+            Page old = byNumber.get(page.getNumber());
+            if (old == null || ! old.getPath().equals(page.getPath()) || old.getTemplate() != page.getTemplate()) {
+                put(page);
+                changed++;
+            }
+        }
+        for (Integer number : new ArrayList<>(byNumber.keySet())) {
+            if (! found.contains(number)) {
+                remove(number);
+                changed++;
+            }
+        }
+        log.service("Reloaded " + byNumber.size() + " pages, " + changed + " changed");
+    }
+
+    /**
+     * Forgets everything, the index will be read again on next use.
+     */
+    public synchronized void clear() {
+        loaded = false;
+        byPath.clear();
+        byNumber.clear();
+        childPaths.clear();
+    }
+
+    /**
+     * Pages, paths, lookups, misses etc.
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("loaded", loaded);
+        result.put("pages", byNumber.size());
+        result.put("paths", byPath.size());
+        result.put("lookups", lookups.get());
+        result.put("misses", misses.get());
+        return result;
+    }
+
+    /**
+     * The path one level up in the hierarchy, 'news' for 'news/new' and an empty String (the root)
+     * for 'news'.
+     *
+     * @param  path A normalized path
+     * @return the parent path, or <code>null</code> for the root itself
+     */
+    public static String getParentPath(String path) {
+        if (path.isEmpty()) {
+            return null;
+        }
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    /**
+     * The paths directly below this one, in alphabetical order. Such a path does not need to have
+     * pages itself, it can also be an intermediate path with pages below it.
+     *
+     * @param  path A path like '/news', leading and trailing slashes are ignored
+     * @return the child paths, normalized
+     */
+    public Collection<String> getChildPaths(String path) {
+        if (! loaded) {
+            load();
+        }
+        Set<String> children = childPaths.get(normalize(path));
+        return children == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(children);
+    }
+
+    private void addPath(String path) {
+        String parent = getParentPath(path);
+        while (parent != null) {
+            Set<String> siblings = childPaths.computeIfAbsent(parent, k -> new ConcurrentSkipListSet<>());
+            if (! siblings.add(path)) {
+                break;
+            }
+            path = parent;
+            parent = getParentPath(path);
+        }
+    }
+
+    private void removePath(String path) {
+        String parent = getParentPath(path);
+        while (parent != null && ! byPath.containsKey(path) && ! childPaths.containsKey(path)) {
+            Set<String> siblings = childPaths.get(parent);
+            if (siblings != null) {
+                siblings.remove(path);
+                if (siblings.isEmpty()) {
+                    childPaths.remove(parent);
+                }
+            }
+            path = parent;
+            parent = getParentPath(path);
+        }
+    }
+
+    private void put(Page page) {
+        remove(page.getNumber());
+        byNumber.put(page.getNumber(), page);
+        addPath(page.getPath());
+        byPath.compute(page.getPath(), (path, pages) -> {
+            if (pages == null) {
+                return new Page[] { page };
+            }
+            Page[] result = Arrays.copyOf(pages, pages.length + 1);
+            result[pages.length] = page;
+            Arrays.sort(result, (p1, p2) -> Integer.compare(p1.getNumber(), p2.getNumber()));
+            return result;
+        });
+    }
+
+    private void remove(int number) {
+        Page old = byNumber.remove(number);
+        if (old != null) {
+            byPath.computeIfPresent(old.getPath(), (path, pages) -> {
+                Page[] result = new Page[pages.length - 1];
+                int i = 0;
+                for (Page p : pages) {
+                    if (p.getNumber() != number && i < result.length) {
+                        result[i++] = p;
+                    }
+                }
+                return result.length == 0 ? null : result;
+            });
+            removePath(old.getPath());
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        String builder = event.getBuilderName();
+        if (! loaded) {
+            if (loading && pageBuilders.contains(builder)) {
+                pending.add(event.getNodeNumber());
+            }
+            return;
+        }
+        if (pageBuilders.contains(builder)) {
+            pageChanged(event);
+        }
+    }
+
+    /**
+     * Reads a page that changed while the index was loading.
+     */
+    private void refresh(int number) {
+        Cloud cloud = getCloud();
+        Node node = cloud.hasNode(number) ? cloud.getNode(number) : null;
+        if (node != null && pageBuilders.contains(node.getNodeManager().getName())) {
+            put(new Page(number,
+                         normalize(node.getStringValue("path")),
+                         node.isNull("template") ? -1 : node.getIntValue("template")));
+        } else {
+            remove(number);
+        }
+    }
+
+    private synchronized void pageChanged(NodeEvent event) {
+        int number = event.getNodeNumber();
+        if (event.getType() == Event.TYPE_DELETE) {
+            remove(number);
+        } else if (event.getType() == Event.TYPE_NEW || event.getChangedFields().contains("path") || event.getChangedFields().contains("template")) {
+            Cloud cloud = getCloud();
+            if (cloud.hasNode(number)) {
+                Node node = cloud.getNode(number);
+                put(new Page(number,
+                             normalize(node.getStringValue("path")),
+                             node.isNull("template") ? -1 : node.getIntValue("template")));
+            } else {
+                remove(number);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Page #" + number + " now " + byNumber.get(number));
+        }
+    }
+
+    /**
+     * Called by the {@link TemplateCache} when a template changed, to replace the pages using it.
+     */
+    synchronized void templateChanged(int template) {
+        if (! loaded) return;
+        for (Page page : new ArrayList<>(byNumber.values())) {
+            if (page.getTemplate() == template) {
+                put(new Page(page.getNumber(), page.getPath(), template));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.datatypes.processors.*;
+import org.mmbase.security.Rank;
+import org.mmbase.util.logging.*;
+
+
+/**
+ * This commit-processor is used on the field 'path' of 'pages'. It stores the path in one form,
+ * with a leading slash and without a trailing one, f.e. '/news/new' for 'news/new/', and '/' for
+ * the root. It warns when another page in the same portal already has that path, see
+ * {@link PortalIndex}. Existing pages can be rewritten with {@link #normalizePaths(Cloud)}.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class PathProcessor implements CommitProcessor {
+    private static final long serialVersionUID = 0L;
+
+    private static final Logger LOG = Logging.getLoggerInstance(PathProcessor.class);
+
+    /**
+     * The canonical form of a path, f.e. '/news/new' for 'news//new/'.
+     */
+    public static String canonical(String path) {
+        StringBuilder b = new StringBuilder(path.length() + 1);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/') {
+                if (b.length() > 0 && b.charAt(b.length() - 1) != '/') {
+                    b.append(c);
+                }
+            } else if (! Character.isWhitespace(c) || b.length() > 0) {
+                if (b.length() == 0) {
+                    b.append('/');
+                }
+                b.append(c);
+            }
+        }
+        int end = b.length();
+        while (end > 0 && (b.charAt(end - 1) == '/' || Character.isWhitespace(b.charAt(end - 1)))) end--;
+        b.setLength(end);
+        return b.length() == 0 ? "/" : b.toString();
+    }
+
+    @Override
+    public void commit(final Node node, final Field field) {
+        String name = field.getName();
+        if (! node.isNew() && ! node.isChanged(name)) {
+            return;
+        }
+        String path = node.getStringValue(name);
+        String canonical = canonical(path);
+        if (! canonical.equals(path)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Path '" + path + "' of #" + node.getNumber() + " stored as '" + canonical + "'");
+            }
+            node.setValueWithoutProcess(name, canonical);
+        }
+        for (PageIndex.Page other : PageIndex.getInstance().getPages(canonical)) {
+            if (other.getNumber() != node.getNumber() && inSamePortal(node, other.getNumber())) {
+                LOG.warn("Page #" + node.getNumber() + " has the same path '" + canonical + "' as page #" + other.getNumber() + " in the same portal");
+            }
+        }
+    }
+
+    /**
+     * Whether the sections of both pages are related to the same portal, or both to none.
+     */
+    private static boolean inSamePortal(Node node, int other) {
+        PortalIndex portals = PortalIndex.getInstance();
+        int section = node.isNew() ? -1 : portals.getSection(node.getNumber());
+        int otherSection = portals.getSection(other);
+        if (section == otherSection) {
+            return true;
+        }
+        Cloud cloud = node.getCloud();
+        Set<Integer> mine = section < 0 ? Collections.<Integer>emptySet() : getPortals(cloud, section);
+        Set<Integer> theirs = getPortals(cloud, otherSection);
+        if (mine.isEmpty() && theirs.isEmpty()) {
+            return true;
+        }
+        mine = new HashSet<>(mine);
+        mine.retainAll(theirs);
+        return ! mine.isEmpty();
+    }
+
+    private static Set<Integer> getPortals(Cloud cloud, int section) {
+        Set<Integer> result = new HashSet<>();
+        if (! cloud.hasNode(section)) {
+            return result;
+        }
+        Node node = cloud.getNode(section);
+        for (String role : new String[] {"posrel", "footerrel"}) {
+            if (cloud.hasRole(role)) {
+                for (Node portal : node.getRelatedNodes("object", role, "source")) {
+                    if (! "pages".equals(portal.getNodeManager().getName())) {
+                        result.add(portal.getNumber());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites the paths of all existing pages to their canonical form, which is only needed once for
+     * pages created before this processor was used. It is never done without being asked, call the
+     * function 'normalizepaths' of the set 'mmsite' for it.
+     *
+     * @param  cloud MMBase cloud of an administrator
+     * @return the number of pages changed
+     * @throws SecurityException if the user of the cloud is no administrator
+     */
+    public static int normalizePaths(Cloud cloud) {
+        if (cloud.getUser().getRank().getInt() < Rank.ADMIN.getInt()) {
+            throw new SecurityException("Only an administrator can normalize the paths of all pages, not " + cloud.getUser());
+        }
+        if (! cloud.hasNodeManager("pages")) {
+            return 0;
+        }
+        NodeManager pages = cloud.getNodeManager("pages");
+        int count = 0;
+        for (Node page : pages.getList(pages.createQuery())) {
+            String path = page.getStringValue("path");
+            String canonical = canonical(path);
+            if (! canonical.equals(path)) {
+                page.setStringValue("path", canonical);
+                page.commit();
+                count++;
+            }
+        }
+        LOG.service("Normalized the paths of " + count + " pages");
+        return count;
+    }
+
+}
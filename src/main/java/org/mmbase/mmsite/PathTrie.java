@@ -0,0 +1,93 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+
+
+/**
+ * Immutable trie of directories like 'mmbase' or 'mmbase/edit', to find out if a path starts with
+ * one of them without creating substrings. A directory only matches when a slash follows it,
+ * 'mmbase' matches '/mmbase/' and '/mmbase/admin' but not '/mmbase' or '/mmbaseinfo'.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+final class PathTrie {
+
+    private final char[] chars;
+    private final PathTrie[] children;
+    private final boolean terminal;
+
+    private PathTrie(SortedMap<Character, Collection<String>> next, boolean terminal) {
+        this.chars = new char[next.size()];
+        this.children = new PathTrie[next.size()];
+        this.terminal = terminal;
+        int i = 0;
+        for (Map.Entry<Character, Collection<String>> e : next.entrySet()) {
+            chars[i] = e.getKey();
+            children[i] = build(e.getValue());
+            i++;
+        }
+    }
+
+    /**
+     * @param directories Directories without leading or trailing slashes
+     */
+    static PathTrie build(Collection<String> directories) {
+        SortedMap<Character, Collection<String>> next = new TreeMap<>();
+        boolean terminal = false;
+        for (String d : directories) {
+            if (d.isEmpty()) {
+                terminal = true;
+            } else {
+                next.computeIfAbsent(d.charAt(0), k -> new ArrayList<>()).add(d.substring(1));
+            }
+        }
+        return new PathTrie(next, terminal);
+    }
+
+    boolean isEmpty() {
+        return chars.length == 0 && ! terminal;
+    }
+
+    /**
+     * Whether the path, from <code>start</code> on, begins with one of the directories followed by a slash.
+     */
+    boolean matches(String path, int start) {
+        PathTrie node = this;
+        for (int i = start; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/' && node.terminal && i > start) {
+                return true;
+            }
+            int index = Arrays.binarySearch(node.chars, c);
+            if (index < 0) {
+                return false;
+            }
+            node = node.children[index];
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.SearchUtil;
+import org.mmbase.core.event.*;
+import org.mmbase.storage.search.RelationStep;
+import org.mmbase.storage.search.SortOrder;
+import org.mmbase.storage.search.Step;
+import org.mmbase.storage.search.StepField;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Decides which of several pages with the same path belongs to a portal. A page belongs to a portal
+ * when its section, the page at the top of its 'posrel' hierarchy, is related to the portal with 'posrel'
+ * or 'footerrel'.
+ * The hierarchy of all pages is read with one query, the pages of a portal with one or two queries
+ * when the portal is first used, and every resolved combination of portal and path is remembered.
+ * Everything is forgotten again on relation events on pages and on changes of paths. Each time that
+ * happens a generation counter is increased, and what was read or resolved while it did is not kept,
+ * since it may have been read before the change.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class PortalIndex implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(PortalIndex.class);
+
+    /* parents are followed at most this many times to find the section */
+    private static final int MAX_DEPTH = 9;
+    private static final Integer NONE = -1;
+
+    private static final PortalIndex instance = new PortalIndex();
+
+    public static PortalIndex getInstance() {
+        return instance;
+    }
+
+    private volatile Map<Integer, Integer> parents = null;
+    private final Map<Integer, Integer> sections = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> portalPages = new ConcurrentHashMap<>();
+    private final Map<String, Integer> resolved = new ConcurrentHashMap<>();
+    /* increased, while holding this, each time something is forgotten */
+    private long generation = 0;
+    /* concurrent requests for the same portal and path, or for the parents, wait for each other */
+    private final SingleFlight<String, Integer> resolving = new SingleFlight<>("portal pages", 10000);
+    private final SingleFlight<String, Map<Integer, Integer>> loadingParents = new SingleFlight<>("page parents", 30000);
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private PortalIndex() {
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    /**
+     * Of several pages with the same path, the one whose section belongs to the portal. When more of them
+     * do, the last one is returned.
+     *
+     * @param  portal     The portal node, f.e. of type 'pools'
+     * @param  candidates Pages with the same path
+     * @return the page in this portal or <code>null</code> if none of them is
+     */
+    public PageIndex.Page getPage(Node portal, PageIndex.Page[] candidates) {
+        String key = portal.getNumber() + ":" + candidates[0].getPath();
+        Integer number = resolved.get(key);
+        if (number == null) {
+            number = resolving.get(key, () -> resolve(key, portal, candidates));
+        }
+        return NONE.equals(number) ? null : PageIndex.getInstance().getPage(number);
+    }
+
+    private Integer resolve(String key, Node portal, PageIndex.Page[] candidates) {
+        long gen = getGeneration();
+        Integer number = NONE;
+        Set<Integer> related = getPortalPages(portal);
+        for (PageIndex.Page candidate : candidates) {
+            if (related.contains(getSection(candidate.getNumber()))) {
+                if (log.isDebugEnabled()) {
+                    log.debug("main section of #" + candidate.getNumber() + " belongs to portal");
+                }
+                number = candidate.getNumber();
+            }
+        }
+        synchronized (this) {
+            if (gen == generation) {
+                resolved.put(key, number);
+            }
+        }
+        return number;
+    }
+
+    /**
+     * The section of a page, the ultimate parent following 'posrel' relations from parent to child page.
+     *
+     * @param  page Number of a page
+     * @return number of the section, which is the page itself if it has no parent
+     */
+    public int getSection(int page) {
+        Integer section = sections.get(page);
+        if (section == null) {
+            long gen = getGeneration();
+            Map<Integer, Integer> p = getParents();
+            section = page;
+            for (int i = 0; i < MAX_DEPTH; i++) {
+                Integer parent = p.get(section);
+                if (parent == null) {
+                    break;
+                }
+                section = parent;
+            }
+            synchronized (this) {
+                if (gen == generation) {
+                    sections.put(page, section);
+                }
+            }
+        }
+        return section;
+    }
+
+    /**
+     * Reads the hierarchy of the pages now instead of on first use.
+     */
+    protected void load() {
+        getParents();
+    }
+
+    /**
+     * @return The parent of each page, or <code>null</code> if the hierarchy was not read (yet)
+     */
+    Map<Integer, Integer> getParentsIfLoaded() {
+        Map<Integer, Integer> p = parents;
+        return p == null ? null : Collections.unmodifiableMap(p);
+    }
+
+    /**
+     * Uses the hierarchy read from an {@link IndexSnapshot} instead of from the database.
+     */
+    synchronized void restore(Map<Integer, Integer> restored) {
+        generation++;
+        sections.clear();
+        parents = restored;
+        resolved.clear();
+    }
+
+    /**
+     * Reads the hierarchy again, which is how a restored one is brought up to date.
+     */
+    void reload() {
+        long gen = getGeneration();
+        Map<Integer, Integer> loaded = loadParents();
+        synchronized (this) {
+            if (gen == generation && ! loaded.equals(parents)) {
+                generation++;
+                parents = loaded;
+                sections.clear();
+                resolved.clear();
+            }
+        }
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The hierarchy, read when it is not yet. When it changes while it is read, it is read again, so a
+     * hierarchy that is already stale is never kept. When it keeps changing the last one read is used
+     * but not kept.
+     */
+    private Map<Integer, Integer> getParents() {
+        Map<Integer, Integer> p = parents;
+        if (p == null) {
+            p = loadingParents.get("parents", () -> {
+                Map<Integer, Integer> loaded = null;
+                for (int i = 0; i < 3; i++) {
+                    long gen = getGeneration();
+                    loaded = loadParents();
+                    synchronized (this) {
+                        if (gen == generation) {
+                            parents = loaded;
+                            return loaded;
+                        }
+                    }
+                    log.debug("Hierarchy of the pages changed while it was read");
+                }
+                return loaded;
+            });
+        }
+        return p;
+    }
+
+    private Map<Integer, Integer> loadParents() {
+        Cloud cloud = getCloud();
+        NodeManager pages = cloud.getNodeManager("pages");
+        Query query = cloud.createQuery();
+        Step parentStep = query.addStep(pages);
+        query.setAlias(parentStep, "parent");
+        RelationStep relationStep = query.addRelationStep(pages, "posrel", "destination");
+        Step childStep = relationStep.getNext();
+        query.setAlias(childStep, "child");
+        StepField parentField = query.addField(parentStep, pages.getField("number"));
+        query.addField(childStep, pages.getField("number"));
+        query.addSortOrder(parentField, SortOrder.ORDER_ASCENDING);
+
+        Map<Integer, Integer> result = new HashMap<>();
+        for (Node n : cloud.getList(query)) {
+            result.putIfAbsent(n.getIntValue("child.number"), n.getIntValue("parent.number"));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Read " + result.size() + " parents of pages");
+        }
+        return result;
+    }
+
+    private Set<Integer> getPortalPages(Node portal) {
+        Set<Integer> result = portalPages.get(portal.getNumber());
+        if (result == null) {
+            long gen = getGeneration();
+            result = new HashSet<>();
+            for (Node n : SearchUtil.findRelatedNodeList(portal, "pages", "posrel")) {
+                result.add(n.getNumber());
+            }
+            if (portal.getCloud().hasRelationManager(portal.getNodeManager().getName(), "pages", "footerrel")) {
+                // add pages in footer with footerrel
+                if (log.isDebugEnabled()) log.debug("trying footerrel");
+                for (Node n : SearchUtil.findRelatedNodeList(portal, "pages", "footerrel")) {
+                    result.add(n.getNumber());
+                }
+            }
+            synchronized (this) {
+                if (gen == generation) {
+                    portalPages.put(portal.getNumber(), result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets everything, it will be read again when needed.
+     */
+    public synchronized void clear() {
+        generation++;
+        parents = null;
+        sections.clear();
+        portalPages.clear();
+        resolved.clear();
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if ("pages".equals(event.getBuilderName())
+            && (event.getType() != Event.TYPE_CHANGE || event.getChangedFields().contains("path"))) {
+            synchronized (this) {
+                generation++;
+                resolved.clear();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void notify(RelationEvent event) {
+        String source = event.getRelationSourceType();
+        String destination = event.getRelationDestinationType();
+        if (! "pages".equals(destination) && ! "pages".equals(source)) {
+            return;
+        }
+        generation++;
+        if ("pages".equals(source) && "pages".equals(destination)) {
+            parents = null;
+            sections.clear();
+        } else if ("pages".equals(destination)) {
+            portalPages.remove(event.getRelationSourceNumber());
+        } else {
+            portalPages.remove(event.getRelationDestinationNumber());
+        }
+        resolved.clear();
+    }
+
+}
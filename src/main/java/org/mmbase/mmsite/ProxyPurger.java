@@ -0,0 +1,492 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.core.event.*;
+import org.mmbase.module.core.MMBaseContext;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+import org.mmbase.util.xml.UtilReader;
+
+
+/**
+ * Removes the pages and articles that changed from the caching proxies in front of the site, so
+ * they can be cached long. When a node of type 'pages', 'articles', 'articles_translations' or
+ * 'templates', or a relation between them changes, all nice urls it is shown on are determined:
+ * those of the page and of the pages below it, of the articles on it, with and without extension
+ * and with each of the display languages of {@link LocaleUtil}. When a template changes, or the
+ * template of a page, all pages in it and the articles on them are purged. The events are collected
+ * for a short while and the urls are determined on a thread of its own, so the queries this takes
+ * do not hold up the one that committed the change. Each url is sent only once, as 'PURGE' (or
+ * 'BAN') requests by {@link PurgeClient} to each proxy in a thread of its own, so a slow proxy does
+ * not delay the others. Configured in 'utils/mmsite.xml' with the properties 'purgeEndpoints' (a
+ * comma separated list like 'localhost:6081', none turns it off), 'purgeMethod', 'purgeHost' (the
+ * header 'Host' of the site, by default that of the proxy), 'purgeDelay' and 'purgeTimeout' in ms.
+ * Any local http server can stand in for a proxy to see what is sent. The function 'purge' of the
+ * set 'mmsite' shows what was sent.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class ProxyPurger implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(ProxyPurger.class);
+
+    private static final ProxyPurger instance = new ProxyPurger();
+
+    public static ProxyPurger getInstance() {
+        return instance;
+    }
+
+    private final List<InetSocketAddress> endpoints = new ArrayList<>();
+    private final String method;
+    private final long delay;
+    private final PurgeClient client;
+    private final Map<InetSocketAddress, ExecutorService> senders = new LinkedHashMap<>();
+
+    /* guarded by this */
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final List<Event> events = new ArrayList<>();
+    private ScheduledExecutorService scheduler = null;
+    private boolean scheduled = false;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private ProxyPurger() {
+        Map<String, String> properties = new UtilReader("mmsite.xml").getProperties();
+        String e = properties.get("purgeEndpoints");
+        if (e != null) {
+            for (String endpoint : e.split(",")) {
+                endpoint = endpoint.trim();
+                if (endpoint.isEmpty()) continue;
+                try {
+                    URI uri = new URI(endpoint.contains("://") ? endpoint : "http://" + endpoint);
+                    endpoints.add(InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort() < 0 ? 80 : uri.getPort()));
+                } catch (URISyntaxException use) {
+                    log.warn("Not a proxy: " + endpoint + " " + use.getMessage());
+                }
+            }
+        }
+        String m = properties.get("purgeMethod");
+        method = m == null || m.trim().isEmpty() ? "PURGE" : m.trim().toUpperCase();
+        String h = properties.get("purgeHost");
+        String host = h == null || h.trim().isEmpty() ? null : h.trim();
+        delay = getLong(properties, "purgeDelay", 1000);
+        int timeout = (int) getLong(properties, "purgeTimeout", 5000);
+        client = new PurgeClient(method, host, timeout);
+        for (InetSocketAddress endpoint : endpoints) {
+            senders.put(endpoint, Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "MMSite proxy purge " + endpoint);
+                t.setDaemon(true);
+                return t;
+            }));
+        }
+        if (isEnabled()) {
+            log.service("Sending " + method + " to " + endpoints + " after " + delay + " ms");
+        }
+    }
+
+    private static long getLong(Map<String, String> properties, String property, long def) {
+        String value = properties.get(property);
+        try {
+            return value == null || value.trim().isEmpty() ? def : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            log.warn("Property " + property + " is no number: " + value);
+            return def;
+        }
+    }
+
+    public boolean isEnabled() {
+        return ! endpoints.isEmpty();
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    /**
+     * Puts urls in the next batch to send, urls that are already in it are not sent twice.
+     *
+     * @param urls Paths like '/mmsite/news.html.nl', with the context path
+     */
+    public void purge(Collection<String> urls) {
+        if (! isEnabled() || urls.isEmpty()) return;
+        synchronized (this) {
+            for (String url : urls) {
+                queued.incrementAndGet();
+                if (! pending.add(url)) {
+                    duplicates.incrementAndGet();
+                }
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Puts an event in the next batch, its urls are determined when that is sent.
+     */
+    private synchronized void queue(Event event) {
+        events.add(event);
+        schedule();
+    }
+
+    /* called while holding this */
+    private void schedule() {
+        if (scheduled) return;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "MMSite proxy purge");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        scheduled = true;
+        scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Determines the urls of the events collected, and hands them together with the other urls
+     * collected to the thread of each proxy.
+     */
+    void flush() {
+        List<Event> batchEvents;
+        Set<String> urls;
+        synchronized (this) {
+            scheduled = false;
+            batchEvents = new ArrayList<>(events);
+            events.clear();
+            urls = new LinkedHashSet<>(pending);
+            pending.clear();
+        }
+        for (Event event : batchEvents) {
+            try {
+                // a RelationEvent is a NodeEvent too
+                Set<String> eventUrls = event instanceof RelationEvent ? getUrls((RelationEvent) event) : getUrls((NodeEvent) event);
+                for (String url : eventUrls) {
+                    queued.incrementAndGet();
+                    if (! urls.add(url)) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not determine urls of " + event + ": " + e.getMessage(), e);
+            }
+        }
+        if (urls.isEmpty()) return;
+        batches.incrementAndGet();
+        List<String> batch = Collections.unmodifiableList(new ArrayList<>(urls));
+        for (Map.Entry<InetSocketAddress, ExecutorService> sender : senders.entrySet()) {
+            sender.getValue().execute(() -> send(sender.getKey(), batch));
+        }
+    }
+
+    private void send(InetSocketAddress endpoint, List<String> batch) {
+        try {
+            int ok = client.send(endpoint, batch);
+            sent.addAndGet(ok);
+            failed.addAndGet(batch.size() - ok);
+        } catch (IOException ioe) {
+            failed.addAndGet(batch.size());
+            log.warn("Could not send " + batch.size() + " urls to " + endpoint + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * The context path and directory of the pages, f.e. '/mmsite/'.
+     */
+    private String getPagesPrefix() {
+        SiteUrlConverter site = SiteUrlConverter.getInstance();
+        return getContextPath() + (site == null ? "/" : site.getDirectory());
+    }
+
+    /**
+     * The context path and directory of the articles, f.e. '/mmsite/articles/'.
+     */
+    private String getArticlesPrefix() {
+        ArticlesUrlConverter articles = ArticlesUrlConverter.getInstance();
+        return getContextPath() + (articles == null ? "/articles/" : articles.getDirectory());
+    }
+
+    private static String getContextPath() {
+        String root = MMBaseContext.getHtmlRootUrlPath();
+        if (root == null) return "";
+        return root.endsWith("/") ? root.substring(0, root.length() - 1) : root;
+    }
+
+    /**
+     * Adds an url with and without extension, and with and without each display language.
+     *
+     * @param url  The url without extension and language
+     * @param extension Whether it can have an extension, the home page has not
+     */
+    void addVariants(Collection<String> urls, String url, boolean extension) {
+        List<String> bases = new ArrayList<>(2);
+        bases.add(url);
+        SiteUrlConverter site = SiteUrlConverter.getInstance();
+        if (extension && site != null) {
+            String ext = site.getSettings().extension;
+            if (ext != null && ! ext.isEmpty()) {
+                bases.add(url + "." + ext);
+            }
+        }
+        List<Locale> locales = LocaleUtil.getInstance().getDisplayLocales();
+        for (String base : bases) {
+            urls.add(base);
+            for (Locale locale : locales) {
+                urls.add(base + "." + locale);
+            }
+        }
+    }
+
+    /**
+     * The urls of a page, f.e. '/mmsite/news', '/mmsite/news.html', '/mmsite/news.nl' and '/mmsite/news.html.nl'.
+     *
+     * @param path Path of the page, like '/news'
+     */
+    void addPage(Collection<String> urls, String path) {
+        if (path == null) return;
+        String p = PageIndex.normalize(path);
+        addVariants(urls, getPagesPrefix() + p, ! p.isEmpty());
+    }
+
+    /**
+     * The urls of a page and of all pages below it.
+     */
+    void addPageTree(Collection<String> urls, String path) {
+        if (path == null) return;
+        addPage(urls, path);
+        String p = PageIndex.normalize(path);
+        for (PageIndex.Page page : PageIndex.getInstance().getAllPages()) {
+            String other = PageIndex.normalize(page.getPath());
+            if (! p.equals(other) && (p.isEmpty() || other.startsWith(p + "/"))) {
+                addPage(urls, page.getPath());
+            }
+        }
+    }
+
+    /**
+     * The urls of an article and its comments, on a page and without it.
+     *
+     * @param pagePath Path of the page, or <code>null</code> for only the url without page
+     */
+    void addArticle(Collection<String> urls, int number, String title, String pagePath) {
+        ArticlesUrlConverter converter = ArticlesUrlConverter.getInstance();
+        if (converter == null) return;
+        List<String> paths = new ArrayList<>(2);
+        paths.add(converter.getPath(null, number, title));
+        if (pagePath != null) {
+            paths.add(converter.getPath(PageIndex.normalize(pagePath), number, title));
+        }
+        String prefix = getArticlesPrefix();
+        for (String path : paths) {
+            addVariants(urls, prefix + path, true);
+            addVariants(urls, prefix + path + "/comment", true);
+        }
+    }
+
+    /**
+     * The urls of an article on all its pages, and those of the pages.
+     */
+    void addArticle(Collection<String> urls, Node article, String title) {
+        addArticle(urls, article.getNumber(), title, null);
+        Cloud cloud = article.getCloud();
+        NodeQuery query = Queries.createRelatedNodesQuery(article, cloud.getNodeManager("pages"), "posrel", "source");
+        for (Node page : query.getNodeManager().getList(query)) {
+            addArticle(urls, article.getNumber(), title, page.getStringValue("path"));
+            addPage(urls, page.getStringValue("path"));
+        }
+    }
+
+    /**
+     * The urls of all articles on a page.
+     */
+    void addArticles(Collection<String> urls, Node page, String path) {
+        Cloud cloud = page.getCloud();
+        NodeQuery query = Queries.createRelatedNodesQuery(page, cloud.getNodeManager("articles"), "posrel", "destination");
+        for (Node article : query.getNodeManager().getList(query)) {
+            addArticle(urls, article.getNumber(), article.getStringValue("title"), path);
+        }
+    }
+
+    /**
+     * All urls that show a node.
+     */
+    Set<String> getUrls(NodeEvent event) {
+        Set<String> urls = new LinkedHashSet<>();
+        Cloud cloud = getCloud();
+        int number = event.getNodeNumber();
+        Node node = event.getType() != Event.TYPE_DELETE && cloud.hasNode(number) ? cloud.getNode(number) : null;
+        switch (event.getBuilderName()) {
+        case "pages": {
+            String path = getValue(event, node, "path");
+            boolean moved = event.getType() == Event.TYPE_DELETE || event.getChangedFields().contains("path");
+            if (moved) {
+                String old = (String) event.getOldValue("path");
+                addPageTree(urls, old);
+                if (node != null) {
+                    addArticles(urls, node, old);
+                }
+            }
+            addPage(urls, path);
+            if (node != null && ! moved && event.getChangedFields().contains("template")) {
+                // the articles on the page are shown in its template too
+                addArticles(urls, node, path);
+            }
+            break;
+        }
+        case "articles": {
+            String title = getValue(event, node, "title");
+            if (event.getChangedFields().contains("title") && event.getOldValue("title") != null) {
+                String old = (String) event.getOldValue("title");
+                if (node != null) {
+                    addArticle(urls, node, old);
+                } else {
+                    addArticle(urls, number, old, null);
+                }
+            }
+            if (node != null) {
+                addArticle(urls, node, title);
+            } else {
+                addArticle(urls, number, title, null);
+            }
+            break;
+        }
+        case "articles_translations": {
+            if (node != null) {
+                NodeQuery query = Queries.createRelatedNodesQuery(node, cloud.getNodeManager("articles"), "langrel", "both");
+                for (Node article : query.getNodeManager().getList(query)) {
+                    addArticle(urls, article, article.getStringValue("title"));
+                }
+            }
+            break;
+        }
+        case "templates": {
+            // every page in the template, and the articles on them
+            for (PageIndex.Page page : PageIndex.getInstance().getAllPages()) {
+                if (page.getTemplate() == number) {
+                    addPage(urls, page.getPath());
+                    if (cloud.hasNode(page.getNumber())) {
+                        addArticles(urls, cloud.getNode(page.getNumber()), page.getPath());
+                    }
+                }
+            }
+            break;
+        }
+        default:
+        }
+        return urls;
+    }
+
+    /**
+     * All urls that show the nodes of a relation.
+     */
+    Set<String> getUrls(RelationEvent event) {
+        Set<String> urls = new LinkedHashSet<>();
+        Cloud cloud = getCloud();
+        for (int number : new int[] { event.getRelationSourceNumber(), event.getRelationDestinationNumber() }) {
+            if (! cloud.hasNode(number)) continue;
+            Node node = cloud.getNode(number);
+            switch (node.getNodeManager().getName()) {
+            case "pages":
+                addPage(urls, node.getStringValue("path"));
+                break;
+            case "articles":
+                addArticle(urls, node, node.getStringValue("title"));
+                break;
+            default:
+            }
+        }
+        return urls;
+    }
+
+    private static String getValue(NodeEvent event, Node node, String field) {
+        if (node != null) {
+            return node.getStringValue(field);
+        }
+        Object value = event.getNewValue(field);
+        if (value == null) {
+            value = event.getOldValue(field);
+        }
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Sent, failed, pending etc.
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", isEnabled());
+        result.put("endpoints", endpoints.toString());
+        result.put("method", method);
+        result.put("queued", queued.get());
+        result.put("duplicates", duplicates.get());
+        result.put("pending", pending.size());
+        result.put("pendingEvents", events.size());
+        result.put("batches", batches.get());
+        result.put("sent", sent.get());
+        result.put("failed", failed.get());
+        return result;
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (! isEnabled() || event.getType() == Event.TYPE_NEW) return; // a new node is not cached yet
+        if (isShown(event.getBuilderName()) || "templates".equals(event.getBuilderName())) {
+            queue(event);
+        }
+    }
+
+    @Override
+    public void notify(RelationEvent event) {
+        if (! isEnabled()) return;
+        String source = event.getRelationSourceType();
+        String destination = event.getRelationDestinationType();
+        if (! isShown(source) && ! isShown(destination)) return;
+        queue(event);
+    }
+
+    private static boolean isShown(String builder) {
+        return "pages".equals(builder) || "articles".equals(builder) || "articles_translations".equals(builder);
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyPurger " + getStatistics();
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Sends requests like 'PURGE /mmsite/news.html HTTP/1.1' to a caching proxy, for {@link ProxyPurger}.
+ * The requests for a batch of urls go over one connection that is kept open, plain sockets are used
+ * since HttpURLConnection does not allow methods like 'PURGE'. The urls are percent-encoded like a
+ * browser requests them, see {@link UrlUtils#encodePath}, and urls with control characters are not
+ * sent at all, so nothing can be added to the request. It can be tried against any local http server.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class PurgeClient {
+    private static final Logger log = Logging.getLoggerInstance(PurgeClient.class);
+
+    private final String method;
+    private final String host;
+    private final int timeout;
+
+    /**
+     * @param method  'PURGE' or 'BAN'
+     * @param host    The header 'Host', or <code>null</code> for that of the proxy
+     * @param timeout Connect and read timeout in ms
+     */
+    public PurgeClient(String method, String host, int timeout) {
+        this.method = method;
+        this.host = host;
+        this.timeout = timeout;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Sends the requests over one connection, a new one is opened when the proxy closes it.
+     *
+     * @return the number of requests the proxy answered with a status below 400 (404 counts too: it
+     *         was not cached)
+     */
+    public int send(InetSocketAddress endpoint, List<String> urls) throws IOException {
+        String hostHeader = host != null ? host : endpoint.getHostString() + (endpoint.getPort() == 80 ? "" : ":" + endpoint.getPort());
+        int ok = 0;
+        Socket socket = null;
+        InputStream in = null;
+        try {
+            for (String url : urls) {
+                if (hasControlCharacter(url)) {
+                    log.warn("Not sending " + method + " for an url with a control character: " + url.replaceAll("\\p{Cntrl}", "?"));
+                    continue;
+                }
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(endpoint.getHostString(), endpoint.getPort()), timeout);
+                    socket.setSoTimeout(timeout);
+                    in = new BufferedInputStream(socket.getInputStream());
+                }
+                OutputStream out = socket.getOutputStream();
+                String request = method + " " + UrlUtils.encodePath(url) + " HTTP/1.1\r\n"
+                    + "Host: " + hostHeader + "\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "\r\n";
+                out.write(request.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                Response response = Response.read(in);
+                if (response.status < 400 || response.status == 404) {
+                    ok++;
+                } else {
+                    log.warn(endpoint + " answered " + response.status + " to " + method + " " + url);
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug(method + " " + url + " " + endpoint + ": " + response.status);
+                }
+                if (response.close) {
+                    socket.close();
+                    socket = null;
+                }
+            }
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        return ok;
+    }
+
+    private static boolean hasControlCharacter(String url) {
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c < 0x20 || c == 0x7f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The status of an http response, its body is skipped.
+     */
+    static final class Response {
+        final int status;
+        final boolean close;
+
+        Response(int status, boolean close) {
+            this.status = status;
+            this.close = close;
+        }
+
+        static Response read(InputStream in) throws IOException {
+            String statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("No response");
+            }
+            String[] parts = statusLine.split(" ", 3);
+            int status;
+            try {
+                status = Integer.parseInt(parts.length > 1 ? parts[1] : "");
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Not http: " + statusLine);
+            }
+            long length = -1;
+            boolean chunked = false;
+            boolean close = statusLine.startsWith("HTTP/1.0");
+            String line;
+            while ((line = readLine(in)) != null && ! line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    close = value.equalsIgnoreCase("close");
+                }
+            }
+            if (chunked) {
+                long size;
+                while ((size = readChunkSize(in)) > 0) {
+                    skip(in, size + 2);
+                }
+                while ((line = readLine(in)) != null && ! line.isEmpty()) {
+                    // trailers
+                }
+            } else if (length >= 0) {
+                skip(in, length);
+            } else if (status >= 200 && status != 204 && status != 304) {
+                // body until the connection is closed
+                while (in.read() >= 0) {
+                }
+                close = true;
+            }
+            return new Response(status, close);
+        }
+
+        private static long readChunkSize(InputStream in) throws IOException {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed in chunked body");
+            }
+            try {
+                return Long.parseLong(line.split(";")[0].trim(), 16);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Not a chunk size: " + line);
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder b = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && c != '\n') {
+                if (c != '\r') b.append((char) c);
+            }
+            return c < 0 && b.length() == 0 ? null : b.toString();
+        }
+
+        private static void skip(InputStream in, long n) throws IOException {
+            while (n > 0) {
+                long skipped = in.skip(n);
+                if (skipped <= 0) {
+                    if (in.read() < 0) throw new EOFException();
+                    skipped = 1;
+                }
+                n -= skipped;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.mmbase.framework.basic.FrameworkFilter;
+
+
+/**
+ * The path of a request as the url converters of MMSite see it, parsed once and put on the request
+ * so that {@link SiteUrlConverter} and {@link ArticlesUrlConverter} do not each split it again.
+ * A path like '/news/2345/some_title.html.nl' has the segments 'news', '2345' and 'some_title', the
+ * extension 'html' and the language 'nl'. Segments are kept as offsets in the original path, they
+ * are only copied when asked for. Whether the path is in one of the excluded directories of
+ * {@link SiteUrlConverter} is decided here as well.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class RequestPath {
+
+    public static final String KEY = RequestPath.class.getName();
+
+    private static final int[] NONE = new int[0];
+
+    private final String path;
+    /* begin and end of each segment, the end of the last one excludes extension and language */
+    private final int[] bounds;
+    private final String language;
+    private final boolean dotted;
+    private final boolean extension;
+    private final boolean excluded;
+
+    /**
+     * The parsed path of this request, which is parsed when not done yet for this path. The path of a
+     * request changes when it is forwarded, in which case it is parsed again.
+     *
+     * @param  request HttpServletRequest
+     * @return the path as parsed by MMSite
+     */
+    public static RequestPath get(HttpServletRequest request) {
+        String path = FrameworkFilter.getPath(request);
+        Object o = request.getAttribute(KEY);
+        if (o instanceof RequestPath && ((RequestPath) o).path.equals(path)) {
+            return (RequestPath) o;
+        }
+        SiteUrlConverter site = SiteUrlConverter.getInstance();
+        RequestPath rp = new RequestPath(path, site == null ? null : site.getSettings(), LocaleUtil.getInstance());
+        request.setAttribute(KEY, rp);
+        return rp;
+    }
+
+    RequestPath(String path, SiteUrlConverter.Settings settings, LocaleUtil localeUtil) {
+        this.path = path;
+        excluded = settings != null && ! settings.excluded.isEmpty() && path.startsWith("/") && settings.excluded.matches(path, 1);
+
+        int[] b = NONE;
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (start >= 0 && i > start) {
+                    if (b.length == count) {
+                        b = Arrays.copyOf(b, Math.max(8, count * 2));
+                    }
+                    b[count++] = start;
+                    b[count++] = i;
+                }
+                start = i + 1;
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        bounds = Arrays.copyOf(b, count);
+
+        String lang = null;
+        boolean dot = false;
+        boolean ext = false;
+        if (count > 0) {
+            int first = bounds[count - 2];
+            int end = bounds[count - 1];
+            /* language last after extension: index.html.es */
+            int lastDot = path.lastIndexOf('.', end - 1);
+            dot = lastDot >= first;
+            if (dot && localeUtil.isMultiLanguage() && localeUtil.isLanguage(path, lastDot + 1, end)) {
+                lang = path.substring(lastDot + 1, end);
+                end = lastDot;
+            }
+            if (settings != null && settings.useExtension) {
+                int length = settings.extension.length();
+                int extDot = end - length - 1;
+                if (extDot > first && path.charAt(extDot) == '.' && path.regionMatches(extDot + 1, settings.extension, 0, length)) {
+                    end = extDot;
+                    ext = true;
+                }
+            }
+            bounds[count - 1] = end;
+        }
+        language = lang;
+        dotted = dot;
+        extension = ext;
+    }
+
+    /**
+     * Whether the path is in one of the directories excluded by {@link SiteUrlConverter}, f.e. '/mmbase/admin/'.
+     */
+    public boolean isExcluded() {
+        return excluded;
+    }
+
+    /**
+     * @return language code at the end of the path, or null if there is none
+     */
+    public String getLanguage() {
+        return language;
+    }
+
+    /**
+     * @return whether the path ended with the configured extension
+     */
+    public boolean hasExtension() {
+        return extension;
+    }
+
+    /**
+     * Whether the last segment contained a dot, also when it was no language or extension.
+     */
+    boolean isDotted() {
+        return dotted;
+    }
+
+    /**
+     * @return the number of non-empty segments
+     */
+    public int size() {
+        return bounds.length / 2;
+    }
+
+    /**
+     * @param  i  index of the segment
+     * @return the segment, the last one without extension and language
+     */
+    public String segment(int i) {
+        return path.substring(bounds[2 * i], bounds[2 * i + 1]);
+    }
+
+    /**
+     * Compares a segment without copying it.
+     */
+    public boolean segmentEquals(int i, String s) {
+        int begin = bounds[2 * i];
+        int length = bounds[2 * i + 1] - begin;
+        return length == s.length() && path.regionMatches(begin, s, 0, length);
+    }
+
+    /**
+     * Reads a segment of digits as a number without copying it.
+     *
+     * @return the number, or <code>-1</code> if the segment is not a (positive int) number, also when it
+     *         is too big for an int, see {@link #segmentIsDigits}
+     */
+    public int segmentAsNumber(int i) {
+        int begin = bounds[2 * i];
+        int end = bounds[2 * i + 1];
+        if (! segmentIsDigits(i)) {
+            return -1;
+        }
+        long result = 0;
+        for (int j = begin; j < end; j++) {
+            result = result * 10 + (path.charAt(j) - '0');
+            if (result > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) result;
+    }
+
+    /**
+     * Whether a segment only contains digits, like a node number, even when it is too big for one.
+     */
+    public boolean segmentIsDigits(int i) {
+        int begin = bounds[2 * i];
+        int end = bounds[2 * i + 1];
+        for (int j = begin; j < end; j++) {
+            char c = path.charAt(j);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return begin < end;
+    }
+
+    /**
+     * @return the path without extension and language, f.e. '/news/2345/some_title', or an empty String
+     */
+    public String getPath() {
+        if (bounds.length == 0) {
+            return "";
+        }
+        int begin = bounds[0] > 0 ? bounds[0] - 1 : 0;
+        return path.substring(begin, bounds[bounds.length - 1]);
+    }
+
+    /**
+     * @return the path as requested
+     */
+    public String getRequestedPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return path + " -> " + getPath() + (extension ? " (extension)" : "") + (language == null ? "" : " (" + language + ")");
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Lets concurrent threads that need the same value wait for the one that is already loading it,
+ * instead of all running the same queries, f.e. when a popular page was just changed and is no
+ * longer in a cache. Nothing is remembered after loading: the loader should put the value in a cache
+ * itself. When loading fails the exception is thrown in all waiting threads and the next
+ * thread tries again. A thread that waited longer than the timeout loads the value itself.
+ * Values are shared between threads of different users, so they should not be bound to a cloud,
+ * use node numbers instead of nodes.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class SingleFlight<K, V> {
+    private static final Logger log = Logging.getLoggerInstance(SingleFlight.class);
+
+    private final String name;
+    private final long timeout;
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param name    Name used in logging
+     * @param timeout Time in ms to wait for another thread loading the same key
+     */
+    public SingleFlight(String name, long timeout) {
+        this.name = name;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Loads a value, or waits for the thread already loading it.
+     *
+     * @param  key    Identifies the value
+     * @param  loader Loads the value
+     * @return the value loaded by this or another thread
+     */
+    public V get(K key, Supplier<V> loader) {
+        return get(key, timeout, loader);
+    }
+
+    /**
+     * @param  timeout Time in ms to wait for another thread, after which this thread loads the value itself
+     */
+    public V get(K key, long timeout, Supplier<V> loader) {
+        FutureTask<V> task = new FutureTask<>(loader::get);
+        FutureTask<V> loading = inFlight.putIfAbsent(key, task);
+        if (loading == null) {
+            try {
+                task.run();
+                return result(task);
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        coalesced.incrementAndGet();
+        try {
+            return loading.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            timeouts.incrementAndGet();
+            log.warn(name + ": waited more than " + timeout + " ms for " + key + ", loading it again");
+            return loader.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return loader.get();
+        } catch (ExecutionException ee) {
+            throw unwrap(ee);
+        }
+    }
+
+    private V result(FutureTask<V> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException ie) {
+            // does not happen, the task already ran
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        } catch (ExecutionException ee) {
+            throw unwrap(ee);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return the number of times a thread waited for another one instead of loading itself
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of times waiting for another thread took too long
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of keys being loaded now
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + inFlight.size() + " loading, " + coalesced + " coalesced, " + timeouts + " timeouts)";
+    }
+
+}
@@ -37,6 +37,8 @@ import org.mmbase.util.logging.Logging;
  * The UrlConverter that can filter and create urls for pages in the site application.
  * It can be used as a '/' (root) UrlConverter. Use 'excludedPaths' to list directories to
  * exclude that might get mixed up with this one and are not mentioned in web.xml.
+ * The path of the request is parsed once in a {@link RequestPath}, which presumes this converter
+ * is used with directory '/'.
  * It presumes (pages) nodes with the fields 'path' and 'template'.
  * When multilanguage is turned on pages can get extensions like '.nl' and 'en', f.e. '/page.nl',
  * that can be used to display content in a different language. For this to happen a request
@@ -60,10 +62,28 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
     private static final long serialVersionUID = 0L;
     private static final Logger log = Logging.getLoggerInstance(SiteUrlConverter.class);
 
-    protected final List<String> excludedPaths = new ArrayList<>();
-    protected String extension = "html";
-    protected boolean useExtension = false;
+    /**
+     * The configuration of the converter and what is derived from it. It is replaced as a whole when a
+     * setting changes, so requests never see a half changed configuration and need no locking.
+     */
+    protected static final class Settings {
+        final Set<String> excludedPaths;
+        /* the excluded paths, to match the beginning of a path with */
+        final PathTrie excluded;
+        final boolean useExtension;
+        final String extension;
+
+        Settings(Set<String> excludedPaths, boolean useExtension, String extension) {
+            this.excludedPaths = Collections.unmodifiableSet(excludedPaths);
+            this.excluded = PathTrie.build(excludedPaths);
+            this.useExtension = useExtension;
+            this.extension = extension;
+        }
+    }
+
+    protected volatile Settings settings = new Settings(Collections.<String>emptySet(), false, "html");
     private   final LocaleUtil localeUtil = LocaleUtil.getInstance();
+    private   final NiceUrlCache cache = NiceUrlCache.getInstance();
     private static SiteUrlConverter instance;
 
     @SuppressWarnings("LeakingThisInConstructor")
@@ -72,6 +92,8 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
         setDirectory("/");
         addBlock(ComponentRepository.getInstance().getComponent("mmsite").getBlock("page"));
         instance = this;
+        WarmUp.getInstance(); // warms up the caches when MMBase is up
+        ProxyPurger.getInstance(); // purges changed urls from proxies, if configured
     }
     /**
      *
@@ -81,17 +103,27 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
         return instance;
     }
 
-    public void setExcludedPaths(String l) {
-        excludedPaths.clear();
-        excludedPaths.addAll(Arrays.asList(l.split(",")));
+    public synchronized void setExcludedPaths(String l) {
+        Set<String> paths = new HashSet<>();
+        for (String e : l.split(",")) {
+            String path = PageIndex.normalize(e.trim());
+            if (! path.isEmpty()) {
+                paths.add(path);
+            }
+        }
+        settings = new Settings(paths, settings.useExtension, settings.extension);
+    }
+
+    public synchronized void setUseExtension(boolean t) {
+        settings = new Settings(settings.excludedPaths, t, settings.extension);
     }
 
-    public void setUseExtension(boolean t) {
-        useExtension = t;
+    public synchronized void setExtension(String e) {
+        settings = new Settings(settings.excludedPaths, settings.useExtension, e);
     }
 
-    public void setExtension(String e) {
-        extension = e;
+    protected Settings getSettings() {
+        return settings;
     }
 
 
@@ -110,11 +142,8 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
     @Override
     public boolean isFilteredMode(Parameters frameworkParameters) throws FrameworkException {
         HttpServletRequest request = org.mmbase.framework.basic.BasicUrlConverter.getUserRequest(frameworkParameters.get(Parameter.REQUEST));
-        String path = FrameworkFilter.getPath(request);
-        for (String e : excludedPaths) {
-            if (path.startsWith("/" + e + "/")) {
-                return false;
-            }
+        if (RequestPath.get(request).isExcluded()) {
+            return false;
         }
         return super.isFilteredMode(frameworkParameters);
     }
@@ -139,21 +168,19 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
             } else {
                 parameters.set(Framework.N, null);
 
-                String path = n.getStringValue("path");
-                if (path.startsWith("/")) {
-                    path = path.substring(1);
-                }
-                if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
-                b.append(path);
-
-                if (b.length() > b_len) {   // check if url is altered
-                    if (useExtension) {
-                        b.append(".").append(extension);
+                Settings s = settings;
+                String language = localeUtil.getLanguage(frameworkParameters);
+                String key = NiceUrlCache.key(this, block, n.getNumber(), language, s.useExtension ? s.extension : "");
+                NiceUrlCache.Entry cached = cache.get(key);
+                if (cached != null) {
+                    b.append(cached.getUrl());
+                } else {
+                    b.append(getNiceUrl(s, n.getStringValue("path"), language));
+
+                    if (n.getNumber() > 0) {
+                        cache.put(key, new NiceUrlCache.Entry(n.getNumber(), n.getNumber(), b.substring(b_len)));
                     }
                 }
-
-                localeUtil.appendLanguage(b, frameworkParameters);
-
             }
 
         }
@@ -164,6 +191,28 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
     }
 
 
+    /**
+     * The nice url of a page after the directory, f.e. 'news/new.html.nl'.
+     *
+     * @param path     Path of the page, stored like '/news/new', see PathProcessor
+     * @param language Language to append or <code>null</code>
+     */
+    String getNiceUrl(String path, String language) {
+        return getNiceUrl(settings, path, language);
+    }
+
+    private String getNiceUrl(Settings s, String path, String language) {
+        StringBuilder b = new StringBuilder();
+        b.append(path, path.startsWith("/") ? 1 : 0, path.length());
+        if (b.length() > 0) {   // not for the home page
+            if (s.useExtension) {
+                b.append(".").append(s.extension);
+            }
+        }
+        localeUtil.appendLanguage(b, language);
+        return b.toString();
+    }
+
     /**
      * Translates the result of {@link #getNiceUrl} back to an actual JSP which can render the block
      */
@@ -174,46 +223,45 @@ public class SiteUrlConverter extends DirectoryUrlConverter {
             log.debug("path pieces: " + pa + ", path size: " + pa.size());
         }
 
-        HttpServletRequest request = frameworkParameters.get(Parameter.REQUEST);
+        HttpServletRequest request = BasicUrlConverter.getUserRequest(frameworkParameters.get(Parameter.REQUEST));
+        RequestPath rp = RequestPath.get(request);
 
         StringBuilder result = new StringBuilder();
         Cloud cloud = ContextProvider.getDefaultCloudContext().getCloud("mmbase");
-        if (!pa.isEmpty() && excludedPaths.contains(pa.get(0))) {
+        if (rp.isExcluded()) {
             if (log.isDebugEnabled()) {
-                log.debug("Returning null, path in excludepaths: " + pa.get(0));
+                log.debug("Returning null, path in excludepaths: " + rp);
             }
             return Url.NOT;
         }
 
-        StringBuilder sb = new StringBuilder();
-        for (String piece: pa) {
-            sb.append("/").append(piece);
-        }
-        String path = sb.toString();
-        if (log.isDebugEnabled()) {
-            log.debug("path: " + path);
-        }
-
         /* language last after extension: index.html.es */
         try {
-            path = localeUtil.setLanguage(path, request);
+            localeUtil.setLanguage(rp, request);
         } catch (NotFoundException nfe) {
             log.warn(nfe); // WTF
             return Url.NOT;
         }
 
-        if (useExtension && path.contains(extension)) {
-            path = path.substring(0, path.lastIndexOf(extension) - 1);
+        String path = rp.getPath();
+        if (log.isDebugEnabled()) {
+            log.debug("path: " + path);
         }
 
-        Node node = UrlUtils.getPagebyPath(request, cloud, cloud.getNodeManager("pages"), path);
-        if (node != null) {
-            String template = node.getNodeValue("template").getStringValue("url");
+        PageIndex.Page page = UrlUtils.getIndexedPagebyPath(request, cloud, path);
+        if (page != null) {
+            TemplateCache.Template resolved = page.getResolvedTemplate();
+            if (resolved == null) {
+                log.warn("No template found for page " + page);
+                return Url.NOT;
+            }
+            String template = resolved.getUrl();
             if (!template.startsWith("/")) {
                 result.append("/");
             }
             char connector = !template.contains("?") ? '?' : '&';
-            result.append(template).append(connector).append("n=").append(node.getNumber());
+            result.append(template).append(connector).append("n=").append(page.getNumber());
+            Validator.set(request, page.getNumber(), -1);
         } else {
             if (log.isDebugEnabled()) {
                 log.debug("No node found for '" + path + "'");
@@ -0,0 +1,388 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.cache.CachePolicy;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Writes 'sitemap.xml' for the pages and articles of the portal of the request, with their nice urls
+ * as made by {@link SiteUrlConverter} and {@link ArticlesUrlConverter}, percent-encoded by
+ * {@link UrlUtils#encodePath} as the protocol requires, 'lastmod' where the nodes
+ * have a field 'lastmodified' and an alternate url for each display language of {@link LocaleUtil}.
+ * The nodes are read in batches ordered by number, each batch starting after the last number of the
+ * previous one, and written straight to the response, so memory stays the same however large the
+ * site is. A site of more than 50.000 urls gets a sitemap index instead, pointing to parts of at
+ * most 50.000 pages or articles like 'sitemap.xml?articles=12345', which is the number after which
+ * the part starts. The response is gzipped when the client accepts it.
+ * Map it in web.xml on '/sitemap.xml'.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class SitemapServlet extends HttpServlet {
+    private static final long serialVersionUID = 0L;
+    private static final Logger log = Logging.getLoggerInstance(SitemapServlet.class);
+
+    /* maximum number of urls in a sitemap */
+    static final int MAX_URLS = 50000;
+    /* nodes read per query */
+    private static final int BATCH = 1000;
+
+    private static final String[] TYPES = { "pages", "articles" };
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Cloud cloud = getCloud();
+        String type = null;
+        int after = -1;
+        for (String t : TYPES) {
+            String a = request.getParameter(t);
+            if (a != null && cloud.hasNodeManager(t)) {
+                try {
+                    after = Integer.parseInt(a);
+                } catch (NumberFormatException nfe) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, t + " is no number: " + a);
+                    return;
+                }
+                type = t;
+            }
+        }
+
+        response.setContentType("application/xml");
+        response.setCharacterEncoding("UTF-8");
+        OutputStream out = response.getOutputStream();
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept != null && accept.contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.addHeader("Vary", "Accept-Encoding");
+            out = new GZIPOutputStream(out, 8192);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+        Sitemap sitemap = new Sitemap(cloud, request, writer);
+        try {
+            if (type != null) {
+                sitemap.urlset(type, after);
+            } else if (count(cloud, "pages") + count(cloud, "articles") > MAX_URLS) {
+                sitemap.index();
+            } else {
+                sitemap.urlset(null, -1);
+            }
+        } catch (RuntimeException e) {
+            log.error("Could not write sitemap: " + e.getMessage(), e);
+            throw e;
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The number of nodes of a type in the sitemap, or 0 if there is no such type.
+     */
+    static int count(Cloud cloud, String type) {
+        if (! cloud.hasNodeManager(type)) {
+            return 0;
+        }
+        NodeManager nm = cloud.getNodeManager(type);
+        NodeQuery query = nm.createQuery();
+        addConstraints(query, nm);
+        return Queries.count(query);
+    }
+
+    /**
+     * Only the articles that are shown.
+     */
+    private static void addConstraints(Query query, NodeManager nm) {
+        if ("articles".equals(nm.getName()) && nm.hasField("show")) {
+            Step step = query.getSteps().get(0);
+            Queries.addConstraint(query, query.createConstraint(query.createStepField(step, nm.getField("show")), Boolean.TRUE));
+        }
+    }
+
+    /**
+     * The next batch of nodes of a type after a number, ordered by number.
+     *
+     * @param fields The fields besides 'number'
+     */
+    static NodeList next(Cloud cloud, String type, int after, int max, String... fields) {
+        NodeManager nm = cloud.getNodeManager(type);
+        Query query = cloud.createQuery();
+        Step step = query.addStep(nm);
+        StepField number = query.addField(step, nm.getField("number"));
+        for (String field : fields) {
+            if (nm.hasField(field)) {
+                query.addField(step, nm.getField(field));
+            }
+        }
+        addConstraints(query, nm);
+        Queries.addConstraint(query, query.createConstraint(number, FieldCompareConstraint.GREATER, after));
+        query.addSortOrder(number, SortOrder.ORDER_ASCENDING);
+        query.setMaxNumber(max);
+        // every batch is read once, it would only push other queries out of the cache
+        query.setCachePolicy(CachePolicy.NEVER);
+        return cloud.getList(query);
+    }
+
+    /**
+     * Writes one sitemap, or the index.
+     */
+    static class Sitemap {
+        private final Cloud cloud;
+        private final HttpServletRequest request;
+        private final Writer w;
+        private final String base;
+        private final List<Locale> locales;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+
+        Sitemap(Cloud cloud, HttpServletRequest request, Writer w) {
+            this.cloud = cloud;
+            this.request = request;
+            this.w = w;
+            StringBuilder b = new StringBuilder(request.getScheme()).append("://").append(request.getServerName());
+            int port = request.getServerPort();
+            if (port > 0 && ! (port == 80 && "http".equals(request.getScheme())) && ! (port == 443 && "https".equals(request.getScheme()))) {
+                b.append(':').append(port);
+            }
+            b.append(request.getContextPath());
+            this.base = b.toString();
+            LocaleUtil localeUtil = LocaleUtil.getInstance();
+            this.locales = localeUtil.isMultiLanguage() ? localeUtil.getDisplayLocales() : Collections.<Locale>emptyList();
+        }
+
+        /**
+         * The index, with a part for each 50.000 nodes of each type. Only the numbers are read.
+         */
+        void index() throws IOException {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            w.write("<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+            String loc = base + request.getServletPath();
+            int parts = 0;
+            for (String type : TYPES) {
+                if (! cloud.hasNodeManager(type)) continue;
+                int after = -1;
+                int counted = 0;
+                boolean more = true;
+                while (more) {
+                    NodeList batch = next(cloud, type, after, BATCH);
+                    if (counted == 0 && ! batch.isEmpty()) {
+                        sitemap(loc + "?" + type + "=" + after);
+                        parts++;
+                    }
+                    for (Node n : batch) {
+                        after = n.getIntValue(type + ".number");
+                        if (++counted == MAX_URLS) {
+                            counted = 0;
+                        }
+                    }
+                    more = batch.size() == BATCH;
+                }
+            }
+            w.write("</sitemapindex>\n");
+            if (log.isDebugEnabled()) {
+                log.debug("Index of " + parts + " sitemaps");
+            }
+        }
+
+        private void sitemap(String loc) throws IOException {
+            w.write("  <sitemap><loc>");
+            w.write(escape(loc));
+            w.write("</loc></sitemap>\n");
+        }
+
+        /**
+         * The urls of at most 50.000 nodes of a type after a number, or of all pages and articles.
+         *
+         * @param type 'pages', 'articles' or <code>null</code> for both
+         */
+        void urlset(String type, int after) throws IOException {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            w.write("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\"");
+            if (! locales.isEmpty()) {
+                w.write(" xmlns:xhtml=\"http://www.w3.org/1999/xhtml\"");
+            }
+            w.write(">\n");
+            int written = 0;
+            for (String t : TYPES) {
+                if ((type == null || type.equals(t)) && cloud.hasNodeManager(t)) {
+                    written += "pages".equals(t) ? pages(type == null ? -1 : after) : articles(type == null ? -1 : after);
+                }
+            }
+            w.write("</urlset>\n");
+            if (log.isDebugEnabled()) {
+                log.debug("Sitemap of " + written + " urls " + (type == null ? "" : type + " after " + after));
+            }
+        }
+
+        /**
+         * The pages of the portal of the request, of pages with the same path in more portals only
+         * the one of this portal.
+         */
+        private int pages(int after) throws IOException {
+            SiteUrlConverter converter = SiteUrlConverter.getInstance();
+            String prefix = base + converter.getDirectory();
+            int read = 0;
+            int written = 0;
+            NodeList batch;
+            do {
+                batch = next(cloud, "pages", after, Math.min(BATCH, MAX_URLS - read), "path", "lastmodified");
+                for (Node n : batch) {
+                    read++;
+                    after = n.getIntValue("pages.number");
+                    String path = n.getStringValue("pages.path");
+                    if (path == null || path.isEmpty()) continue;
+                    PageIndex.Page page = UrlUtils.getIndexedPagebyPath(request, cloud, path);
+                    if (page == null || page.getNumber() != after) continue;
+
+                    String loc = prefix + UrlUtils.encodePath(converter.getNiceUrl(path, null));
+                    url(loc, getDate(n, "pages"));
+                    alternates(loc);
+                    for (Locale locale : locales) {
+                        alternate(locale.toLanguageTag(), prefix + UrlUtils.encodePath(converter.getNiceUrl(path, locale.toString())));
+                    }
+                    end();
+                    written++;
+                }
+            } while (batch.size() == BATCH && read < MAX_URLS);
+            return written;
+        }
+
+        /**
+         * The articles on a page of the portal of the request, or on no page at all.
+         */
+        private int articles(int after) throws IOException {
+            ArticlesUrlConverter converter = ArticlesUrlConverter.getInstance();
+            String prefix = base + converter.getDirectory();
+            int read = 0;
+            int written = 0;
+            NodeList batch;
+            do {
+                batch = next(cloud, "articles", after, Math.min(BATCH, MAX_URLS - read), "title", "lastmodified");
+                List<Integer> numbers = new ArrayList<>(batch.size());
+                for (Node n : batch) {
+                    numbers.add(n.getIntValue("articles.number"));
+                }
+                Map<Integer, PageIndex.Page> pages = ArticlesUrlConverter.getPages(cloud, numbers);
+                for (Node n : batch) {
+                    read++;
+                    after = n.getIntValue("articles.number");
+                    PageIndex.Page page = pages.get(after);
+                    if (page != null) {
+                        PageIndex.Page inPortal = UrlUtils.getIndexedPagebyPath(request, cloud, page.getPath());
+                        if (inPortal == null || inPortal.getNumber() != page.getNumber()) continue;
+                    }
+                    String title = n.getStringValue("articles.title");
+                    String loc = prefix + UrlUtils.encodePath(converter.getNiceUrl(page, after, title, null));
+                    url(loc, getDate(n, "articles"));
+                    alternates(loc);
+                    for (Locale locale : locales) {
+                        alternate(locale.toLanguageTag(), prefix + UrlUtils.encodePath(converter.getNiceUrl(page, after, title, locale.toString())));
+                    }
+                    end();
+                    written++;
+                }
+            } while (batch.size() == BATCH && read < MAX_URLS);
+            return written;
+        }
+
+        private Date getDate(Node n, String type) {
+            NodeManager nm = cloud.getNodeManager(type);
+            return nm.hasField("lastmodified") ? n.getDateValue(type + ".lastmodified") : null;
+        }
+
+        private void url(String loc, Date lastModified) throws IOException {
+            w.write("  <url><loc>");
+            w.write(escape(loc));
+            w.write("</loc>");
+            if (lastModified != null && lastModified.getTime() > 0) {
+                w.write("<lastmod>");
+                w.write(dateFormat.format(lastModified));
+                w.write("</lastmod>");
+            }
+            if (! locales.isEmpty()) {
+                w.write("\n");
+            }
+        }
+
+        /**
+         * The url without language is the one for languages that are not displayed.
+         */
+        private void alternates(String loc) throws IOException {
+            if (! locales.isEmpty()) {
+                alternate("x-default", loc);
+            }
+        }
+
+        private void alternate(String hreflang, String href) throws IOException {
+            w.write("    <xhtml:link rel=\"alternate\" hreflang=\"");
+            w.write(hreflang);
+            w.write("\" href=\"");
+            w.write(escape(href));
+            w.write("\"/>\n");
+        }
+
+        private void end() throws IOException {
+            w.write(locales.isEmpty() ? "</url>\n" : "  </url>\n");
+        }
+
+        private static String escape(String s) {
+            StringBuilder b = null;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                String e;
+                switch (c) {
+                case '&':  e = "&amp;"; break;
+                case '<':  e = "&lt;"; break;
+                case '>':  e = "&gt;"; break;
+                case '"':  e = "&quot;"; break;
+                case '\'': e = "&apos;"; break;
+                default:   e = null;
+                }
+                if (e != null && b == null) {
+                    b = new StringBuilder(s.length() + 16).append(s, 0, i);
+                }
+                if (b != null) {
+                    if (e != null) b.append(e); else b.append(c);
+                }
+            }
+            return b == null ? s : b.toString();
+        }
+    }
+
+}
@@ -0,0 +1,537 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.core.event.*;
+import org.mmbase.module.core.MMBase;
+import org.mmbase.module.core.MMBaseContext;
+import org.mmbase.security.Rank;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+import org.mmbase.util.xml.UtilReader;
+
+
+/**
+ * Exports the site as static files, which a web server in front of it can serve when there are
+ * more visitors than the site can render. Every page and every article that is shown is requested
+ * from the site itself at its nice urls, as made by {@link SiteUrlConverter} and
+ * {@link ArticlesUrlConverter}, without and with each display language of {@link LocaleUtil}, so it
+ * is rendered by the framework as for any visitor. Each is written to a file at the same path in the
+ * export directory, and gzipped next to it. An url without extension gets a directory with an
+ * 'index.html'.
+ * The files of each node and the time of the export are kept in the file '.mmsite-export' in the
+ * export directory. The next export only renders the nodes that changed since: whose 'lastmodified'
+ * is later, or that changed, or of which a relation changed, while MMBase was up, or that failed.
+ * What changed or failed before MMBase was started is not known, so the first export after that
+ * renders everything again. The files of nodes that are gone or not shown any more are removed.
+ * Only an administrator can start an export with the function 'export'.
+ * The nodes are rendered by 'exportThreads' threads. Configured in 'utils/mmsite.xml' with the
+ * properties 'exportDirectory' (by default 'mmsite-export' in the data directory), 'exportUrl' (the
+ * site to request, by default 'http://localhost:8080' with the context path), 'exportThreads' and
+ * 'exportInterval' in minutes, 0 to only export with the function 'export' of the set 'mmsite'.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class StaticExport implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(StaticExport.class);
+
+    private static final String MANIFEST = ".mmsite-export";
+    /* nodes read per query */
+    private static final int BATCH = 1000;
+
+    private static final StaticExport instance = new StaticExport();
+
+    public static StaticExport getInstance() {
+        return instance;
+    }
+
+    private final Map<String, String> properties;
+    private final int threads;
+    private final int timeout;
+
+    /* nodes that changed since the last export started */
+    private final Set<Integer> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    /* whether an export was done since MMBase was started, before that what changed is not known */
+    private volatile boolean exported = false;
+    private final Map<String, Object> progress = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler = null;
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private StaticExport() {
+        properties = new UtilReader("mmsite.xml").getProperties();
+        threads = Math.max(1, getInt("exportThreads", 4));
+        timeout = getInt("exportTimeout", 60000);
+        progress.put("state", "not run");
+    }
+
+    private int getInt(String property, int def) {
+        String value = properties.get(property);
+        try {
+            return value == null || value.trim().isEmpty() ? def : Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            log.warn("Property " + property + " is no number: " + value);
+            return def;
+        }
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    protected File getDirectory() {
+        String dir = properties.get("exportDirectory");
+        if (dir == null || dir.trim().isEmpty()) {
+            return new File(MMBase.getMMBase().getDataDir(), "mmsite-export");
+        }
+        return new File(dir.trim());
+    }
+
+    /**
+     * The site to request, with the context path, f.e. 'http://localhost:8080/mmsite'.
+     */
+    protected String getUrl() {
+        String url = properties.get("exportUrl");
+        if (url == null || url.trim().isEmpty()) {
+            String root = MMBaseContext.getHtmlRootUrlPath();
+            url = "http://localhost:8080" + (root == null ? "" : root);
+        }
+        url = url.trim();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Exports every so many minutes, in a daemon thread.
+     */
+    public synchronized void schedule(long minutes) {
+        if (scheduler != null || minutes <= 0) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "MMSite export");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::run, minutes, minutes, TimeUnit.MINUTES);
+        log.service("Exporting site to " + getDirectory() + " every " + minutes + " minutes");
+    }
+
+    /**
+     * Starts an export in the background, unless one is running.
+     *
+     * @param  cloud MMBase cloud of an administrator
+     * @return the progress
+     * @throws SecurityException if the user of the cloud is no administrator
+     */
+    public Map<String, Object> start(Cloud cloud) {
+        if (cloud.getUser().getRank().getInt() < Rank.ADMIN.getInt()) {
+            throw new SecurityException("Only an administrator can export the site, not " + cloud.getUser());
+        }
+        if (! running.get()) {
+            Thread t = new Thread(this::run, "MMSite export");
+            t.setDaemon(true);
+            t.start();
+        }
+        return getProgress();
+    }
+
+    /**
+     * The state of the running or last export, and how many nodes it rendered.
+     */
+    public Map<String, Object> getProgress() {
+        return new TreeMap<>(progress);
+    }
+
+    private void run() {
+        if (! running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            export();
+        } catch (Exception e) {
+            log.error("Export failed: " + e.getMessage(), e);
+            progress.put("state", "failed: " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Renders the nodes that changed since the previous export, or all of them if there was none
+     * since MMBase was started.
+     */
+    void export() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        File directory = getDirectory();
+        if (! directory.isDirectory() && ! directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        Manifest manifest = Manifest.read(new File(directory, MANIFEST));
+        // forgotten when the export is done, so they are rendered again if it fails
+        Set<Integer> dirty = new HashSet<>(changed);
+        long since = exported ? manifest.time : -1;
+
+        progress.clear();
+        progress.put("state", "running");
+        progress.put("started", new Date(start));
+        progress.put("since", since < 0 ? "-" : new Date(since));
+        AtomicInteger rendered = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                             new ArrayBlockingQueue<>(threads * 4),
+                                                             r -> {
+                                                                 Thread t = new Thread(r, "MMSite export " + count.incrementAndGet());
+                                                                 t.setDaemon(true);
+                                                                 return t;
+                                                             },
+                                                             new ThreadPoolExecutor.CallerRunsPolicy());
+        Cloud cloud = getCloud();
+        String url = getUrl();
+        List<Locale> locales = LocaleUtil.getInstance().isMultiLanguage() ? LocaleUtil.getInstance().getDisplayLocales() : Collections.<Locale>emptyList();
+        Set<Integer> seen = new HashSet<>();
+        /* pages of articles that changed, their lists of articles changed too */
+        Set<Integer> pagesOfChanged = new HashSet<>();
+
+        ArticlesUrlConverter articles = ArticlesUrlConverter.getInstance();
+        if (articles != null && cloud.hasNodeManager("articles")) {
+            String prefix = url + articles.getDirectory();
+            boolean lastModified = cloud.getNodeManager("articles").hasField("lastmodified");
+            int after = -1;
+            NodeList batch;
+            do {
+                batch = SitemapServlet.next(cloud, "articles", after, BATCH, "title", "lastmodified");
+                List<Integer> numbers = new ArrayList<>(batch.size());
+                for (Node n : batch) {
+                    numbers.add(n.getIntValue("articles.number"));
+                }
+                Map<Integer, PageIndex.Page> pages = ArticlesUrlConverter.getPages(cloud, numbers);
+                for (Node n : batch) {
+                    int number = n.getIntValue("articles.number");
+                    after = number;
+                    seen.add(number);
+                    PageIndex.Page page = pages.get(number);
+                    boolean render = since < 0 || dirty.contains(number) || ! manifest.files.containsKey(number)
+                        || (page != null && dirty.contains(page.getNumber()))
+                        || (lastModified && isModified(n.getDateValue("articles.lastmodified"), since));
+                    if (! render) {
+                        unchanged.incrementAndGet();
+                        continue;
+                    }
+                    if (page != null) {
+                        pagesOfChanged.add(page.getNumber());
+                    }
+                    List<String> urls = new ArrayList<>();
+                    String title = n.getStringValue("articles.title");
+                    urls.add(prefix + articles.getNiceUrl(page, number, title, null));
+                    for (Locale locale : locales) {
+                        urls.add(prefix + articles.getNiceUrl(page, number, title, locale.toString()));
+                    }
+                    executor.execute(() -> render(number, urls, url, directory, manifest, rendered, failed));
+                }
+                progress.put("articles", after);
+            } while (batch.size() == BATCH);
+        }
+
+        SiteUrlConverter site = SiteUrlConverter.getInstance();
+        if (site != null && cloud.hasNodeManager("pages")) {
+            String prefix = url + site.getDirectory();
+            boolean lastModified = cloud.getNodeManager("pages").hasField("lastmodified");
+            int after = -1;
+            NodeList batch;
+            do {
+                batch = SitemapServlet.next(cloud, "pages", after, BATCH, "path", "lastmodified");
+                for (Node n : batch) {
+                    int number = n.getIntValue("pages.number");
+                    after = number;
+                    String path = n.getStringValue("pages.path");
+                    if (path == null || path.isEmpty()) continue;
+                    // of pages with the same path in more portals, only the one the site resolves
+                    PageIndex.Page page = UrlUtils.getIndexedPagebyPath(null, cloud, path);
+                    if (page == null || page.getNumber() != number) continue;
+                    seen.add(number);
+                    boolean render = since < 0 || dirty.contains(number) || pagesOfChanged.contains(number)
+                        || ! manifest.files.containsKey(number)
+                        || (lastModified && isModified(n.getDateValue("pages.lastmodified"), since));
+                    if (! render) {
+                        unchanged.incrementAndGet();
+                        continue;
+                    }
+                    List<String> urls = new ArrayList<>();
+                    urls.add(prefix + site.getNiceUrl(path, null));
+                    for (Locale locale : locales) {
+                        urls.add(prefix + site.getNiceUrl(path, locale.toString()));
+                    }
+                    executor.execute(() -> render(number, urls, url, directory, manifest, rendered, failed));
+                }
+                progress.put("pages", after);
+            } while (batch.size() == BATCH);
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        int removed = 0;
+        for (Iterator<Map.Entry<Integer, List<String>>> it = manifest.files.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, List<String>> e = it.next();
+            if (! seen.contains(e.getKey())) {
+                delete(directory, e.getValue());
+                it.remove();
+                removed++;
+            }
+        }
+        changed.removeAll(dirty);
+        // the nodes that failed are rendered again the next time
+        changed.addAll(manifest.failed);
+        manifest.time = start;
+        manifest.write(new File(directory, MANIFEST));
+        exported = true;
+
+        long duration = System.currentTimeMillis() - start;
+        progress.put("state", "done");
+        progress.put("rendered", rendered.get());
+        progress.put("unchanged", unchanged.get());
+        progress.put("failed", failed.get());
+        progress.put("removed", removed);
+        progress.put("duration", duration + " ms");
+        log.service("Exported " + rendered.get() + " nodes to " + directory + " in " + duration + " ms, "
+                    + unchanged.get() + " unchanged, " + failed.get() + " failed, " + removed + " removed");
+    }
+
+    private static boolean isModified(Date lastModified, long since) {
+        return lastModified != null && lastModified.getTime() >= since;
+    }
+
+    /**
+     * Requests the urls of a node and writes them and their gzipped versions, replacing the files
+     * written for it before.
+     */
+    private void render(int number, List<String> urls, String site, File directory, Manifest manifest,
+                        AtomicInteger rendered, AtomicInteger failed) {
+        List<String> files = new ArrayList<>();
+        try {
+            for (String u : urls) {
+                byte[] content = fetch(u);
+                String file = getFile(u.substring(site.length()));
+                write(directory, file, content);
+                files.add(file);
+                files.add(file + ".gz");
+            }
+            List<String> old = manifest.files.put(number, files);
+            if (old != null) {
+                List<String> gone = new ArrayList<>(old);
+                gone.removeAll(files);
+                delete(directory, gone);
+            }
+            rendered.incrementAndGet();
+        } catch (IOException ioe) {
+            log.warn("Could not export #" + number + ": " + ioe.getMessage());
+            manifest.failed.add(number);
+            failed.incrementAndGet();
+        }
+    }
+
+    private byte[] fetch(String u) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(u).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty("User-Agent", "MMSite export");
+        try {
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException(u + " answered " + status);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                }
+                return out.toByteArray();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * The file of an url path, f.e. 'news/new.html.nl' for '/news/new.html.nl' and
+     * 'news/new/index.html' for '/news/new'.
+     */
+    static String getFile(String path) {
+        StringBuilder b = new StringBuilder();
+        for (String piece : path.split("/")) {
+            if (piece.isEmpty() || piece.equals(".") || piece.equals("..")) continue;
+            if (b.length() > 0) b.append('/');
+            b.append(piece);
+        }
+        int slash = b.lastIndexOf("/");
+        if (b.length() == 0 || b.indexOf(".", slash + 1) < 0) {
+            if (b.length() > 0) b.append('/');
+            b.append("index.html");
+        }
+        return b.toString();
+    }
+
+    /**
+     * Writes a file and its gzipped version to temporary files, which then replace them.
+     */
+    private static void write(File directory, String file, byte[] content) throws IOException {
+        Path path = directory.toPath().resolve(file);
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, content);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Path gz = path.resolveSibling(path.getFileName() + ".gz");
+        Path gzTemp = path.resolveSibling(path.getFileName() + ".gz.tmp");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzTemp))) {
+            out.write(content);
+        }
+        Files.setLastModifiedTime(gzTemp, Files.getLastModifiedTime(path));
+        Files.move(gzTemp, gz, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void delete(File directory, Collection<String> files) {
+        for (String file : files) {
+            try {
+                Files.deleteIfExists(directory.toPath().resolve(file));
+            } catch (IOException ioe) {
+                log.warn("Could not remove " + file + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The time of the last export and the files of each node, one line per node:
+     * <pre>
+     *   # 1286379120000
+     *   123 news.html news.html.gz news.html.nl news.html.nl.gz
+     * </pre>
+     */
+    static final class Manifest {
+        long time = -1;
+        final Map<Integer, List<String>> files = new ConcurrentHashMap<>();
+        final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+
+        static Manifest read(File file) throws IOException {
+            Manifest manifest = new Manifest();
+            if (! file.isFile()) {
+                return manifest;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("# ")) {
+                        manifest.time = Long.parseLong(line.substring(2).trim());
+                    } else if (! line.isEmpty()) {
+                        String[] parts = line.split(" ");
+                        manifest.files.put(Integer.parseInt(parts[0]), new ArrayList<>(Arrays.asList(parts).subList(1, parts.length)));
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                log.warn("Not a manifest " + file + ", exporting everything: " + nfe.getMessage());
+                return new Manifest();
+            }
+            return manifest;
+        }
+
+        void write(File file) throws IOException {
+            Path temp = file.toPath().resolveSibling(file.getName() + ".tmp");
+            try (Writer w = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                w.write("# " + time + "\n");
+                for (Map.Entry<Integer, List<String>> e : new TreeMap<>(files).entrySet()) {
+                    w.write(String.valueOf(e.getKey()));
+                    for (String f : e.getValue()) {
+                        w.write(' ');
+                        w.write(f);
+                    }
+                    w.write('\n');
+                }
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        String builder = event.getBuilderName();
+        int number = event.getNodeNumber();
+        switch (builder) {
+        case "pages":
+        case "articles":
+            changed.add(number);
+            break;
+        case "articles_translations":
+            if (event.getType() != Event.TYPE_DELETE) {
+                Cloud cloud = getCloud();
+                if (cloud.hasNode(number)) {
+                    NodeQuery query = Queries.createRelatedNodesQuery(cloud.getNode(number), cloud.getNodeManager("articles"), "langrel", "both");
+                    for (Node article : query.getNodeManager().getList(query)) {
+                        changed.add(article.getNumber());
+                    }
+                }
+            }
+            break;
+        case "templates":
+            for (PageIndex.Page page : PageIndex.getInstance().getAllPages()) {
+                if (page.getTemplate() == number) {
+                    changed.add(page.getNumber());
+                }
+            }
+            break;
+        default:
+        }
+    }
+
+    @Override
+    public void notify(RelationEvent event) {
+        changed.add(event.getRelationSourceNumber());
+        changed.add(event.getRelationDestinationNumber());
+    }
+
+    @Override
+    public String toString() {
+        return "StaticExport " + getProgress();
+    }
+
+}
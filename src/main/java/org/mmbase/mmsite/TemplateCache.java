@@ -0,0 +1,242 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mmbase.bridge.*;
+import org.mmbase.core.event.*;
+import org.mmbase.storage.search.Step;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Keeps the fields 'url' and 'mimetype' of all 'templates' in memory. A site normally has only a
+ * few of them, so they are all read with one query on first use and kept up to date by node events,
+ * after which the {@link PageIndex} is told so its pages carry the changed template.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class TemplateCache implements NodeEventListener {
+    private static final Logger log = Logging.getLoggerInstance(TemplateCache.class);
+
+    private static final TemplateCache instance = new TemplateCache();
+
+    public static TemplateCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * A template as present in the cache.
+     */
+    public static final class Template {
+        private final int number;
+        private final String url;
+        private final String mimetype;
+
+        Template(int number, String url, String mimetype) {
+            this.number = number;
+            this.url = url;
+            this.mimetype = mimetype;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+        /**
+         * @return The url of the jsp, f.e. '/templates/content.jspx'
+         */
+        public String getUrl() {
+            return url;
+        }
+        public String getMimetype() {
+            return mimetype;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number + " " + url;
+        }
+    }
+
+    private final Map<Integer, Template> templates = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+    /* templates changed while loading, read again when done */
+    private volatile boolean loading = false;
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private TemplateCache() {
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    /**
+     * @param  number Node number of a 'templates' node
+     * @return the template or <code>null</code> if it is unknown
+     */
+    public Template get(int number) {
+        if (! loaded) {
+            load();
+        }
+        return templates.get(number);
+    }
+
+    /**
+     * @return The number of templates
+     */
+    public int size() {
+        return templates.size();
+    }
+
+    /**
+     * Reads all templates, which normally happens only once, on first use.
+     */
+    protected synchronized void load() {
+        if (loaded) return;
+        Cloud cloud = getCloud();
+        NodeManager nm = cloud.getNodeManager("templates");
+        pending.clear();
+        loading = true;
+        Query query = cloud.createQuery();
+        Step step = query.addStep(nm);
+        query.addField(step, nm.getField("number"));
+        query.addField(step, nm.getField("url"));
+        query.addField(step, nm.getField("mimetype"));
+        for (Node n : cloud.getList(query)) {
+            int number = n.getIntValue("templates.number");
+            templates.put(number, new Template(number, n.getStringValue("templates.url"), n.getStringValue("templates.mimetype")));
+        }
+        loaded = true;
+        loading = false;
+        for (Integer number : pending) {
+            refresh(number);
+        }
+        pending.clear();
+        log.service("Cached " + templates.size() + " templates");
+    }
+
+    /**
+     * @return All templates, an empty collection when they were not read (yet)
+     */
+    public Collection<Template> getAll() {
+        return Collections.unmodifiableCollection(templates.values());
+    }
+
+    /**
+     * Fills the cache with templates read from an {@link IndexSnapshot} instead of from the database.
+     */
+    synchronized void restore(Collection<Template> restored) {
+        templates.clear();
+        for (Template t : restored) {
+            templates.put(t.getNumber(), t);
+        }
+        loaded = true;
+    }
+
+    /**
+     * Reads all templates again, and lets the {@link PageIndex} replace the pages of the ones that
+     * changed.
+     */
+    void reload() {
+        Map<Integer, Template> old;
+        synchronized (this) {
+            old = new HashMap<>(templates);
+            clear();
+            load();
+        }
+        Set<Integer> numbers = new HashSet<>(old.keySet());
+        numbers.addAll(templates.keySet());
+        for (Integer number : numbers) {
+            Template before = old.get(number);
+            Template now = templates.get(number);
+            if (before == null || now == null
+                || ! Objects.equals(before.getUrl(), now.getUrl()) || ! Objects.equals(before.getMimetype(), now.getMimetype())) {
+                PageIndex.getInstance().templateChanged(number);
+            }
+        }
+    }
+
+    /**
+     * Forgets everything, the templates will be read again on next use.
+     */
+    public synchronized void clear() {
+        loaded = false;
+        templates.clear();
+    }
+
+    /**
+     * Reads a template that changed while loading. The pages are not told, they are read after the
+     * templates (and telling them here while loading could deadlock with {@link PageIndex#load}).
+     */
+    private void refresh(int number) {
+        Cloud cloud = getCloud();
+        if (cloud.hasNode(number)) {
+            Node node = cloud.getNode(number);
+            templates.put(number, new Template(number, node.getStringValue("url"), node.getStringValue("mimetype")));
+        } else {
+            templates.remove(number);
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (! "templates".equals(event.getBuilderName())) return;
+        int number = event.getNodeNumber();
+        if (! loaded) {
+            if (loading) {
+                pending.add(number);
+            }
+            return;
+        }
+        synchronized (this) {
+            if (event.getType() == Event.TYPE_DELETE) {
+                templates.remove(number);
+            } else if (event.getType() == Event.TYPE_NEW
+                       || event.getChangedFields().contains("url") || event.getChangedFields().contains("mimetype")) {
+                Cloud cloud = getCloud();
+                if (cloud.hasNode(number)) {
+                    Node node = cloud.getNode(number);
+                    templates.put(number, new Template(number, node.getStringValue("url"), node.getStringValue("mimetype")));
+                } else {
+                    templates.remove(number);
+                }
+            } else {
+                return;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Template #" + number + " now " + templates.get(number));
+        }
+        PageIndex.getInstance().templateChanged(number);
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2011 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.NodeWrapper;
+
+
+/**
+ * A node as returned by {@link NodeTranslation}: the original node with the fields of its translation
+ * laid over it. Nothing is copied, each field is read when asked for. The value of the translation is
+ * used when the translation has the field and its value is not empty, otherwise the value of the
+ * original. Which fields those are is decided once, when the node is made, and kept in a sorted
+ * array. The fields 'number', 'owner', 'otype' and 'language' are always those of the original.
+ * The node is read only: changing, committing or deleting it, or relating it, throws an
+ * UnsupportedOperationException, since that would change the original.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class TranslatedNode extends NodeWrapper {
+
+    private final Node translation;
+    /* the fields read from the translation, sorted */
+    private final String[] translated;
+
+    public TranslatedNode(Node node, Node translation) {
+        super(node);
+        this.translation = translation;
+        FieldList fields = translation.getNodeManager().getFields(NodeManager.ORDER_NONE);
+        String[] names = new String[fields.size()];
+        int count = 0;
+        for (Field f : fields) {
+            String name = f.getName();
+            if (isOriginal(name) || f.isVirtual()) {
+                continue;
+            }
+            boolean empty;
+            if (f.getType() == Field.TYPE_BINARY) {
+                // not loading the blob only to decide
+                empty = translation.isNull(name);
+            } else {
+                // the stored value, processing it only to decide would double the work
+                Object value = translation.getValueWithoutProcess(name);
+                empty = value == null || "".equals(value);
+            }
+            if (! empty) {
+                names[count++] = name;
+            }
+        }
+        translated = Arrays.copyOf(names, count);
+        Arrays.sort(translated);
+    }
+
+    private static boolean isOriginal(String fieldName) {
+        switch (fieldName) {
+        case "number":
+        case "owner":
+        case "otype":
+        case "language":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return The node holding the translation
+     */
+    public Node getTranslation() {
+        return translation;
+    }
+
+    /**
+     * The node to read the field from, the translation if it has a non-empty value for it.
+     */
+    protected Node source(String fieldName) {
+        return Arrays.binarySearch(translated, fieldName) >= 0 ? translation : node;
+    }
+
+    @Override
+    public Object getValue(String fieldName) {
+        return source(fieldName).getValue(fieldName);
+    }
+
+    @Override
+    public Object getValueWithoutProcess(String fieldName) {
+        return source(fieldName).getValueWithoutProcess(fieldName);
+    }
+
+    @Override
+    public Object getObjectValue(String fieldName) {
+        return source(fieldName).getObjectValue(fieldName);
+    }
+
+    @Override
+    public String getStringValue(String fieldName) {
+        return source(fieldName).getStringValue(fieldName);
+    }
+
+    @Override
+    public int getIntValue(String fieldName) {
+        return source(fieldName).getIntValue(fieldName);
+    }
+
+    @Override
+    public long getLongValue(String fieldName) {
+        return source(fieldName).getLongValue(fieldName);
+    }
+
+    @Override
+    public float getFloatValue(String fieldName) {
+        return source(fieldName).getFloatValue(fieldName);
+    }
+
+    @Override
+    public double getDoubleValue(String fieldName) {
+        return source(fieldName).getDoubleValue(fieldName);
+    }
+
+    @Override
+    public boolean getBooleanValue(String fieldName) {
+        return source(fieldName).getBooleanValue(fieldName);
+    }
+
+    @Override
+    public Date getDateValue(String fieldName) {
+        return source(fieldName).getDateValue(fieldName);
+    }
+
+    @Override
+    public BigDecimal getDecimalValue(String fieldName) {
+        return source(fieldName).getDecimalValue(fieldName);
+    }
+
+    @Override
+    public Node getNodeValue(String fieldName) {
+        return source(fieldName).getNodeValue(fieldName);
+    }
+
+    @Override
+    public byte[] getByteValue(String fieldName) {
+        return source(fieldName).getByteValue(fieldName);
+    }
+
+    @Override
+    public InputStream getInputStreamValue(String fieldName) {
+        return source(fieldName).getInputStreamValue(fieldName);
+    }
+
+    @Override
+    public List getListValue(String fieldName) {
+        return source(fieldName).getListValue(fieldName);
+    }
+
+    @Override
+    public org.w3c.dom.Document getXMLValue(String fieldName) {
+        return source(fieldName).getXMLValue(fieldName);
+    }
+
+    @Override
+    public boolean isNull(String fieldName) {
+        return source(fieldName).isNull(fieldName);
+    }
+
+    @Override
+    public FieldValue getFieldValue(String fieldName) {
+        return source(fieldName).getFieldValue(fieldName);
+    }
+
+    @Override
+    public FieldValue getFieldValue(Field field) {
+        return source(field.getName()).getFieldValue(field);
+    }
+
+    private UnsupportedOperationException readOnly(String what) {
+        return new UnsupportedOperationException("Translated node #" + getNumber() + " is read only, it can not be " + what);
+    }
+
+    @Override
+    public void setValue(String fieldName, Object value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setValueWithoutProcess(String fieldName, Object value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setObjectValue(String fieldName, Object value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setBooleanValue(String fieldName, boolean value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setNodeValue(String fieldName, Node value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setIntValue(String fieldName, int value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setFloatValue(String fieldName, float value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setDoubleValue(String fieldName, double value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setByteValue(String fieldName, byte[] value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setInputStreamValue(String fieldName, InputStream value, long size) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setLongValue(String fieldName, long value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setStringValue(String fieldName, String value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setDateValue(String fieldName, Date value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setDecimalValue(String fieldName, BigDecimal value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setListValue(String fieldName, List value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setXMLValue(String fieldName, org.w3c.dom.Document value) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void setContext(String context) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void commit() {
+        throw readOnly("committed");
+    }
+
+    @Override
+    public void delete() {
+        throw readOnly("deleted");
+    }
+
+    @Override
+    public void delete(boolean deleteRelations) {
+        throw readOnly("deleted");
+    }
+
+    @Override
+    public void deleteRelations() {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void deleteRelations(String relationManager) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public Relation createRelation(Node destinationNode, RelationManager relationManager) {
+        throw readOnly("related");
+    }
+
+    @Override
+    public void createAlias(String alias) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public void deleteAlias(String alias) {
+        throw readOnly("changed");
+    }
+
+    @Override
+    public String toString() {
+        return "translated " + node + " (" + translation.getNumber() + ")";
+    }
+
+}
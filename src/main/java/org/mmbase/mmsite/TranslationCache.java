@@ -0,0 +1,162 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2011 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+
+import org.mmbase.cache.Cache;
+import org.mmbase.core.event.*;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Cache for {@link NodeTranslation}, remembering which translation is used for a node in a locale.
+ * Keys are the node number and the locale, values the number of the translation or {@link #NONE}
+ * when there is no translation, so untranslated nodes are not looked up again either.
+ * Entries are removed on 'langrel' events, and when translation nodes (nodes of a builder ending
+ * with '_translations') are deleted or change language. The keys are indexed by the node and its
+ * translation, so that does not go through the whole cache. Keys of entries that were evicted remain
+ * in the index until it has grown to twice the size of the cache, then it is made again.
+ * Its size can be configured in 'caches.xml' under the name 'MMSiteTranslations'.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class TranslationCache extends Cache<String, Integer> implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(TranslationCache.class);
+
+    public static final Integer NONE = -1;
+
+    private static final TranslationCache instance = new TranslationCache(5000);
+    static {
+        instance.putCache();
+    }
+
+    public static TranslationCache getInstance() {
+        return instance;
+    }
+
+    /* node or translation -> keys of the entries containing it, guarded by this */
+    private final Map<Integer, Set<String>> keysByNode = new HashMap<>();
+    /* number of keys in keysByNode */
+    private int indexed = 0;
+
+    private TranslationCache(int size) {
+        super(size);
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    @Override
+    public String getName() {
+        return "MMSiteTranslations";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Translations of nodes per locale in MMSite";
+    }
+
+    public static String key(int node, Locale locale) {
+        return node + ":" + locale;
+    }
+
+    @Override
+    public synchronized Integer put(String key, Integer value) {
+        Integer previous = super.put(key, value);
+        index(key, value);
+        if (indexed > 2 * maxSize()) {
+            reindex();
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        keysByNode.clear();
+        indexed = 0;
+    }
+
+    /* guarded by this */
+    private void index(String key, Integer value) {
+        int node = Integer.parseInt(key.substring(0, key.indexOf(':')));
+        if (keysByNode.computeIfAbsent(node, k -> new HashSet<>()).add(key)) {
+            indexed++;
+        }
+        if (value != null && ! NONE.equals(value) && value != node
+            && keysByNode.computeIfAbsent(value, k -> new HashSet<>()).add(key)) {
+            indexed++;
+        }
+    }
+
+    /* guarded by this */
+    private void reindex() {
+        keysByNode.clear();
+        indexed = 0;
+        try {
+            for (Map.Entry<String, Integer> e : new ArrayList<>(entrySet())) {
+                index(e.getKey(), e.getValue());
+            }
+        } catch (ConcurrentModificationException cme) {
+            log.debug("Cache changed while indexing it, clearing it");
+            clear();
+        }
+    }
+
+    /**
+     * Removes the entries of this node, and the entries in which it is the translation.
+     */
+    public synchronized void invalidate(int number) {
+        Set<String> keys = keysByNode.remove(number);
+        if (keys == null) {
+            return;
+        }
+        indexed -= keys.size();
+        for (String key : keys) {
+            remove(key);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Removed " + keys.size() + " translations of #" + number);
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (isEmpty() || ! event.getBuilderName().endsWith("_translations")) return;
+        if (event.getType() == Event.TYPE_DELETE) {
+            invalidate(event.getNodeNumber());
+        } else if (event.getType() == Event.TYPE_CHANGE && event.getChangedFields().contains("language")) {
+            // the original is not known here, and this does not happen often
+            clear();
+        }
+    }
+
+    @Override
+    public void notify(RelationEvent event) {
+        if (isEmpty() || ! "langrel".equals(event.getNodeEvent().getBuilderName())) return;
+        invalidate(event.getRelationSourceNumber());
+        invalidate(event.getRelationDestinationNumber());
+    }
+
+}
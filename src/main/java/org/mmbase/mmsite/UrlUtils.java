@@ -21,6 +21,8 @@ along with MMBase. If not, see <http://www.gnu.org/licenses/>.
 
 package org.mmbase.mmsite;
 
+import java.nio.charset.StandardCharsets;
+
 import javax.servlet.http.HttpServletRequest;
 
 import org.mmbase.bridge.*;
@@ -39,6 +41,8 @@ import org.mmbase.util.logging.Logging;
 public final class UrlUtils {
     private static final Logger log = Logging.getLoggerInstance(UrlUtils.class);
 
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     /**
      * Nodes starting form this node to the root, these require a field 'path'.
      *
@@ -100,6 +104,37 @@ public final class UrlUtils {
         return getPagebyPath(req, cloud, cloud.getNodeManager("pages"), path);
     }
 
+    /**
+     * Resolves a path to a page in the {@link PageIndex}. When more pages share the same path
+     * the {@link PortalIndex} decides which one belongs to the portal found in the request.
+     *
+     * @param   req     HttpServletRequest
+     * @param   cloud   MMBase cloud
+     * @param   path    Value of field path, f.e. '/news/new'
+     * @return  the page or null if not found
+     */
+    protected static PageIndex.Page getIndexedPagebyPath(HttpServletRequest req, Cloud cloud, String path) {
+        if (path == null || "".equals(path)) {
+            return null;
+        }
+        if (path.length() > 255) {
+            path = path.substring(0, 255);
+        }
+        PageIndex index = PageIndex.getInstance();
+        PageIndex.Page[] pages = index.getPages(path);
+        if (pages.length == 0) {
+            return null;
+        } else if (pages.length == 1) {
+            return pages[0];
+        } else {
+            Node portal = req == null ? null : getPortal(req);
+            if (log.isDebugEnabled()) {
+                log.debug("portal: " + portal);
+            }
+            return portal == null ? pages[0] : PortalIndex.getInstance().getPage(portal, pages);
+        }
+    }
+
     /**
      * Retrieve a pages node with a certain path.
      * When more pages with the exact same path are found, the request is search for the 'portal' attribute
@@ -127,6 +162,14 @@ public final class UrlUtils {
             path = path.substring(0, 255);
         }
 
+        if ("pages".equals(nm.getName())) {
+            PageIndex.Page page = getIndexedPagebyPath(req, cloud, path);
+            if (log.isDebugEnabled()) {
+                log.debug("returning " + page);
+            }
+            return page == null ? null : cloud.getNode(page.getNumber());
+        }
+
         NodeList nl = SearchUtil.findNodeList(cloud, nm.getName(), "path", path, "number", "UP");
         if (nl.size() == 0) {
             nl.addAll(SearchUtil.findNodeList(cloud, nm.getName(), "path", "/" + path, "number", "UP"));
@@ -212,33 +255,41 @@ public final class UrlUtils {
      * The parent of a node with path '/news/article/some' is the one
      * with '/news/article', then '/news'. It contains the node from which you
      * want to resolve the (crumb)path.
+     * The path is normalized first, so '/news/article/some/' and 'news/article/some' give the same
+     * ancestors. For 'pages' they are looked up in the {@link PageIndex}, paths for which no node
+     * exists are skipped.
      *
      * @param  node	A node of certain type with field path
      * @return nodes leading to homepage/root of the site including the present node
      */
     protected static NodeList listNodes2Root(HttpServletRequest req, Node node, NodeManager nm) {
         NodeList list = nm.createNodeList();
+        Cloud cloud = node.getCloud();
+        boolean indexed = "pages".equals(nm.getName());
 
-        String path = node.getStringValue("path");
-        if (path.startsWith("/")) path = path.substring(1, path.length());
-        if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        String path = PageIndex.normalize(node.getStringValue("path").trim());
         if (log.isDebugEnabled()) {
             log.debug("path from field: " + path);
         }
 
-        String[] pieces = path.split("/");
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < pieces.length - 1; i++) {
-            if (i > 0) sb.append("/");
-            sb.append(pieces[i]);
-            String ppath = sb.toString();
+        int slash = path.indexOf('/');
+        while (slash > 0) {
+            String ppath = path.substring(0, slash);
             if (log.isDebugEnabled()) {
                 log.debug("testing: " + ppath);
             }
-
-            Node n = getPagebyPath(req, node.getCloud(), nm, ppath);
-
-            list.add(n);
+            if (indexed) {
+                PageIndex.Page page = getIndexedPagebyPath(req, cloud, ppath);
+                if (page != null) {
+                    list.add(cloud.getNode(page.getNumber()));
+                }
+            } else {
+                Node parent = getPagebyPath(req, cloud, nm, ppath);
+                if (parent != null) {
+                    list.add(parent);
+                }
+            }
+            slash = path.indexOf('/', slash + 1);
         }
 
         list.add(node);     // add node itself to list
@@ -246,6 +297,48 @@ public final class UrlUtils {
         return list;
     }
 
+    /**
+     * The pages one level below this page in the hierarchy based on field 'path', f.e. for '/news'
+     * the pages '/news/archive' and '/news/new'. They are ordered by path.
+     *
+     * @param  node	A node of type pages
+     * @return the child pages
+     */
+    public static NodeList children(HttpServletRequest req, Node node) {
+        NodeList list = node.getNodeManager().createNodeList();
+        Cloud cloud = node.getCloud();
+        for (String path : PageIndex.getInstance().getChildPaths(node.getStringValue("path"))) {
+            PageIndex.Page page = getIndexedPagebyPath(req, cloud, path);
+            if (page != null) {
+                list.add(cloud.getNode(page.getNumber()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * All pages below this page in the hierarchy based on field 'path', depth first and ordered by path,
+     * f.e. for '/news' the pages '/news/archive', '/news/archive/2009' and '/news/new'.
+     *
+     * @param  node	A node of type pages
+     * @return the descendant pages
+     */
+    public static NodeList descendants(HttpServletRequest req, Node node) {
+        NodeList list = node.getNodeManager().createNodeList();
+        addDescendants(req, node.getCloud(), PageIndex.normalize(node.getStringValue("path")), list);
+        return list;
+    }
+
+    private static void addDescendants(HttpServletRequest req, Cloud cloud, String path, NodeList list) {
+        for (String child : PageIndex.getInstance().getChildPaths(path)) {
+            PageIndex.Page page = getIndexedPagebyPath(req, cloud, child);
+            if (page != null) {
+                list.add(cloud.getNode(page.getNumber()));
+            }
+            addDescendants(req, cloud, child, list);
+        }
+    }
+
     /**
      * Does this url link to an external site or not.
      *
@@ -259,5 +352,39 @@ public final class UrlUtils {
             && !url.contains(servername);
     }
 
+    /**
+     * Percent-encodes each segment of a path as UTF-8, like a browser requests it, so '/news/caf&eacute; 1'
+     * becomes '/news/caf%C3%A9%201'. The slashes are kept, and so are the characters RFC 3986 allows in
+     * a segment.
+     *
+     * @param  path A path like a nice url
+     * @return the path as it can be used in an url
+     */
+    public static String encodePath(String path) {
+        StringBuilder b = null;
+        for (int i = 0; i < path.length(); i++) {
+            if (! isPathChar(path.charAt(i))) {
+                b = new StringBuilder(path.length() + 16).append(path, 0, i);
+                byte[] bytes = path.substring(i).getBytes(StandardCharsets.UTF_8);
+                for (byte by : bytes) {
+                    char c = (char) (by & 0xff);
+                    if (isPathChar(c)) {
+                        b.append(c);
+                    } else {
+                        b.append('%').append(HEX[(by >> 4) & 0xf]).append(HEX[by & 0xf]);
+                    }
+                }
+                break;
+            }
+        }
+        return b == null ? path : b.toString();
+    }
+
+    /* unreserved, sub-delims, ':', '@' and the '/' between segments */
+    private static boolean isPathChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || "-._~!$&'()*+,;=:@/".indexOf(c) >= 0;
+    }
+
 
 }
@@ -0,0 +1,303 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.Queries;
+import org.mmbase.storage.search.SortOrder;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * The validators of a page or article resolved by {@link SiteUrlConverter} or
+ * {@link ArticlesUrlConverter}, which {@link ConditionalGetFilter} uses to answer '304 Not Modified'
+ * and to set 'Cache-Control'. The converters only put the numbers in the request, the ETag and
+ * Last-Modified are determined when the filter asks for them. They are derived from the locale of
+ * the request, the node, its translation, the page, and all relations of the node and the nodes
+ * they lead to, like the articles of a page or the comments and images of an article. The field
+ * 'lastmodified' is used where there is one, else the values of the fields. Last-Modified is only
+ * given when all those nodes have a 'lastmodified'. What is determined is kept in the
+ * {@link ValidatorCache} until one of those nodes changes, so the nodes are not read on every request.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class Validator {
+    private static final Logger log = Logging.getLoggerInstance(Validator.class);
+
+    public static final String KEY = "org.mmbase.mmsite.validator";
+
+    /* with more relations than this only their number and the newest related node are used */
+    private static final int MAX_RELATIONS = 1000;
+
+    private final int node;
+    private final int page;
+    private final Locale locale;
+    private final Locale labels;
+
+    private boolean computed = false;
+    /* whether all nodes described have a field 'lastmodified' */
+    private boolean complete = true;
+    /* the nodes described, a change of which changes the validators */
+    private final Set<Integer> described = new HashSet<>();
+    private String etag;
+    private long lastModified = -1;
+    private int maxAge = -1;
+
+    /**
+     * @param locale The locale of the translation, or <code>null</code>
+     * @param labels The locale the page is rendered in
+     */
+    Validator(int node, int page, Locale locale, Locale labels) {
+        this.node = node;
+        this.page = page;
+        this.locale = locale;
+        this.labels = labels;
+    }
+
+    /**
+     * Puts the validator of a resolved node in the request.
+     *
+     * @param node Number of the page or article
+     * @param page Number of the page it is shown on, or <code>-1</code>
+     */
+    static void set(HttpServletRequest request, int node, int page) {
+        Object locale = request.getAttribute(LocaleUtil.LOCALE_KEY);
+        request.setAttribute(KEY, new Validator(node, page, locale instanceof Locale ? (Locale) locale : null,
+                                                locale instanceof Locale ? (Locale) locale : request.getLocale()));
+    }
+
+    /**
+     * @return the validator of the node resolved for this request, or <code>null</code>
+     */
+    public static Validator get(HttpServletRequest request) {
+        Object o = request.getAttribute(KEY);
+        return o instanceof Validator ? (Validator) o : null;
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    /**
+     * @return a weak ETag, f.e. <code>W/"3f2a9c01b7e4d6a8"</code>
+     */
+    public String getETag() {
+        compute();
+        return etag;
+    }
+
+    /**
+     * @return time in ms or <code>-1</code> if not all of the nodes have a field 'lastmodified'
+     */
+    public long getLastModified() {
+        compute();
+        return lastModified;
+    }
+
+    /**
+     * @return the field 'expires' of the page, or <code>-1</code>
+     */
+    public int getMaxAge() {
+        compute();
+        return maxAge;
+    }
+
+    /**
+     * Whether the client has the current version, by 'If-None-Match' or else 'If-Modified-Since'.
+     */
+    public boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String tag = strip(getETag());
+            for (String t : ifNoneMatch.split(",")) {
+                t = t.trim();
+                if (t.equals("*") || strip(t).equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since;
+        try {
+            since = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+        // the header has seconds only
+        return since >= 0 && getLastModified() >= 0 && getLastModified() / 1000 <= since / 1000;
+    }
+
+    private static String strip(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private synchronized void compute() {
+        if (computed) return;
+        computed = true;
+        ValidatorCache cache = ValidatorCache.getInstance();
+        String key = ValidatorCache.key(node, page, locale, labels);
+        ValidatorCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            etag = entry.etag;
+            lastModified = entry.lastModified;
+            maxAge = entry.maxAge;
+            return;
+        }
+        long stamp = cache.stamp();
+        Cloud cloud = getCloud();
+        StringBuilder state = new StringBuilder();
+        if (! cloud.hasNode(node)) {
+            etag = "W/\"0\"";
+            return;
+        }
+        Node n = cloud.getNode(node);
+        // the labels around the content are in the locale of the request
+        state.append(labels).append(';');
+        describe(n, state);
+
+        if (locale != null) {
+            NodeManager nm = n.getNodeManager();
+            String translations = nm.getProperty("translations.builder");
+            if (cloud.hasNodeManager(translations == null ? nm.getName() + "_translations" : translations)) {
+                Node translation = NodeTranslation.getTranslation(n, locale);
+                if (translation != null) {
+                    describe(translation, state);
+                }
+            }
+        }
+
+        Node p = page >= 0 && page != node && cloud.hasNode(page) ? cloud.getNode(page) : null;
+        if (p != null) {
+            describe(p, state);
+        }
+        if ("pages".equals(n.getNodeManager().getName())) {
+            p = n;
+        }
+        describeRelations(n, state);
+        if (p != null && p.getNodeManager().hasField("expires")) {
+            maxAge = p.getIntValue("expires");
+        }
+        if (! complete) {
+            lastModified = -1;
+        }
+        etag = "W/\"" + Long.toHexString(hash(state)) + "\"";
+        described.add(node);
+        cache.put(key, new ValidatorCache.Entry(etag, lastModified, maxAge, described), stamp);
+        if (log.isDebugEnabled()) {
+            log.debug("#" + node + " " + locale + ": " + etag + ", last modified " + lastModified + " from " + state);
+        }
+    }
+
+    /**
+     * Adds the number and 'lastmodified' of a node to the state, or the values of its fields if it
+     * has no 'lastmodified'.
+     */
+    private void describe(Node n, StringBuilder state) {
+        described.add(n.getNumber());
+        state.append(n.getNumber()).append(':');
+        NodeManager nm = n.getNodeManager();
+        if (nm.hasField("lastmodified")) {
+            Date date = n.getDateValue("lastmodified");
+            long time = date == null ? -1 : date.getTime();
+            state.append(time);
+            lastModified = Math.max(lastModified, time);
+        } else {
+            complete = false;
+            for (Field f : nm.getFields(NodeManager.ORDER_CREATE)) {
+                if (f.getType() != Field.TYPE_BINARY) {
+                    state.append(n.getStringValue(f.getName())).append('|');
+                }
+            }
+        }
+        state.append(';');
+    }
+
+    /**
+     * Adds every relation of the node and the node at its other end to the state, so a change of any
+     * of them changes the ETag. A node with too many relations falls back to
+     * {@link #describeRelated}.
+     */
+    private void describeRelations(Node n, StringBuilder state) {
+        Cloud cloud = n.getCloud();
+        NodeQuery query = Queries.createRelationNodesQuery(n, cloud.getNodeManager("object"), null, "both");
+        query.addSortOrder(query.getStepField(query.getNodeManager().getField("number")), SortOrder.ORDER_ASCENDING);
+        query.setMaxNumber(MAX_RELATIONS + 1);
+        NodeList relations = query.getNodeManager().getList(query);
+        if (relations.size() > MAX_RELATIONS) {
+            complete = false;
+            describeRelated(n, cloud.getNodeManager("object"), null, "both", state);
+            return;
+        }
+        for (Node r : relations) {
+            Node relation = cloud.getNode(r.getNumber());
+            describe(relation, state);
+            int other = relation.getIntValue("snumber") == n.getNumber() ? relation.getIntValue("dnumber") : relation.getIntValue("snumber");
+            if (cloud.hasNode(other)) {
+                describe(cloud.getNode(other), state);
+            }
+        }
+        state.append(relations.size()).append(';');
+    }
+
+    /**
+     * Adds the number of related nodes and the most recently changed, or else the newest, of them
+     * to the state.
+     */
+    private void describeRelated(Node n, NodeManager nm, String role, String direction, StringBuilder state) {
+        NodeQuery query = Queries.createRelatedNodesQuery(n, nm, role, direction);
+        int count = Queries.count(query);
+        state.append(nm.getName()).append(':').append(count);
+        if (count > 0) {
+            String field = nm.hasField("lastmodified") ? "lastmodified" : "number";
+            query.addSortOrder(query.getStepField(nm.getField(field)), SortOrder.ORDER_DESCENDING);
+            query.setMaxNumber(1);
+            NodeList newest = nm.getList(query);
+            if (! newest.isEmpty()) {
+                describe(newest.getNode(0), state);
+            }
+        }
+        state.append(';');
+    }
+
+    /* 64 bits FNV-1a */
+    private static long hash(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "validator of #" + node + (page >= 0 ? " on #" + page : "") + " in " + (locale == null ? labels : locale);
+    }
+
+}
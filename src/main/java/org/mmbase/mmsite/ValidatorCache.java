@@ -0,0 +1,198 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mmbase.cache.Cache;
+import org.mmbase.core.event.*;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+
+
+/**
+ * Cache for the ETag, Last-Modified and max-age that {@link Validator} determines for a page or
+ * article, so they are read from the database once and not on every request. An entry is removed
+ * when one of the nodes it was determined from changes, or a relation of one of them is created,
+ * changed or deleted. The keys are indexed by those nodes, keys of entries that were evicted remain
+ * in the index until it has grown to twice the size of the cache, then it is made again.
+ * Like other MMBase caches its size can be configured in 'caches.xml' under the name
+ * 'MMSiteValidators', by default it holds 5000 pages and articles.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public class ValidatorCache extends Cache<String, ValidatorCache.Entry> implements NodeEventListener, RelationEventListener {
+    private static final Logger log = Logging.getLoggerInstance(ValidatorCache.class);
+
+    private static final ValidatorCache instance = new ValidatorCache(5000);
+    static {
+        instance.putCache();
+    }
+
+    public static ValidatorCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * The validators of a page or article, and the nodes they were determined from.
+     */
+    public static final class Entry {
+        final String etag;
+        final long lastModified;
+        final int maxAge;
+        final int[] nodes;
+
+        Entry(String etag, long lastModified, int maxAge, Collection<Integer> nodes) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.maxAge = maxAge;
+            this.nodes = new int[nodes.size()];
+            int i = 0;
+            for (Integer n : nodes) {
+                this.nodes[i++] = n;
+            }
+        }
+        @Override
+        public String toString() {
+            return etag;
+        }
+    }
+
+    /* node -> keys of the entries determined from it, guarded by this */
+    private final Map<Integer, Set<String>> keysByNode = new HashMap<>();
+    /* number of keys in keysByNode */
+    private int indexed = 0;
+    /* counts changes, validators determined while a node changed are not cached since they may be outdated */
+    private final AtomicLong changes = new AtomicLong();
+
+    private ValidatorCache(int size) {
+        super(size);
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    @Override
+    public String getName() {
+        return "MMSiteValidators";
+    }
+
+    @Override
+    public String getDescription() {
+        return "ETags and last modified times of pages and articles in MMSite";
+    }
+
+    /**
+     * @param page   Number of the page an article is shown on, or <code>-1</code>
+     * @param locale The locale of the translation, or <code>null</code>
+     * @param labels The locale the page is rendered in
+     */
+    public static String key(int node, int page, Locale locale, Locale labels) {
+        return node + ":" + page + ":" + locale + ":" + labels;
+    }
+
+    /**
+     * @return a stamp to pass to {@link #put(String, Entry, long)} before reading the nodes
+     */
+    long stamp() {
+        return changes.get();
+    }
+
+    /**
+     * Caches the validators unless a node changed since the stamp was taken.
+     */
+    synchronized void put(String key, Entry entry, long stamp) {
+        if (stamp != changes.get()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not caching " + key + ", nodes changed while it was determined");
+            }
+            return;
+        }
+        put(key, entry);
+        index(key, entry);
+        if (indexed > 2 * maxSize()) {
+            reindex();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        keysByNode.clear();
+        indexed = 0;
+    }
+
+    /* guarded by this */
+    private void index(String key, Entry entry) {
+        for (int number : entry.nodes) {
+            if (keysByNode.computeIfAbsent(number, k -> new HashSet<>()).add(key)) {
+                indexed++;
+            }
+        }
+    }
+
+    /* guarded by this */
+    private void reindex() {
+        keysByNode.clear();
+        indexed = 0;
+        try {
+            for (Map.Entry<String, Entry> e : new ArrayList<>(entrySet())) {
+                index(e.getKey(), e.getValue());
+            }
+        } catch (ConcurrentModificationException cme) {
+            log.debug("Cache changed while indexing it, clearing it");
+            clear();
+        }
+    }
+
+    /**
+     * Removes the validators determined from this node.
+     */
+    public synchronized void invalidate(int number) {
+        changes.incrementAndGet();
+        Set<String> keys = keysByNode.remove(number);
+        if (keys == null) {
+            return;
+        }
+        indexed -= keys.size();
+        for (String key : keys) {
+            remove(key);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Removed " + keys.size() + " validators of #" + number);
+        }
+    }
+
+    @Override
+    public void notify(NodeEvent event) {
+        if (event.getType() == Event.TYPE_NEW) return; // a new node is in no validator yet
+        invalidate(event.getNodeNumber());
+    }
+
+    @Override
+    public void notify(RelationEvent event) {
+        invalidate(event.getRelationSourceNumber());
+        invalidate(event.getRelationDestinationNumber());
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+
+This file is part of the MMBase MMSite application,
+which is part of MMBase - an open source content management system.
+    Copyright (C) 2009 André van Toly
+
+MMBase MMSite is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+MMBase MMSite is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with MMBase. If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package org.mmbase.mmsite;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mmbase.bridge.*;
+import org.mmbase.core.event.*;
+import org.mmbase.storage.search.SortOrder;
+import org.mmbase.util.logging.Logger;
+import org.mmbase.util.logging.Logging;
+import org.mmbase.util.xml.UtilReader;
+
+
+/**
+ * Fills the indexes and caches of MMSite when MMBase is up, so the first visitors after a deploy do
+ * not have to wait for them: the {@link PageIndex} and {@link TemplateCache}, the hierarchy in the
+ * {@link PortalIndex}, the {@link ArticleIndex}, the urls of the most recent articles and which
+ * translations exist of them and of the pages. The tasks run in parallel on a few threads.
+ * Configured in 'utils/mmsite.xml' with the properties 'warmup' (true or false), 'warmupThreads'
+ * and 'delayReadiness'. With the last one {@link #isReady()} is false until warm-up is done, which
+ * {@link ReadinessServlet} can tell a load balancer.
+ * When an {@link IndexSnapshot} is found, the indexes are filled from it and the tasks only read what
+ * changed since. A new snapshot is written when warm-up is done and every 'snapshotInterval' minutes.
+ * A {@link StaticExport} of the site is made every 'exportInterval' minutes, if set.
+ *
+ * @author Andr&eacute; van Toly
+ * @version $Id$
+ * @since MMSite-1.2
+ */
+public final class WarmUp implements SystemEventListener {
+    private static final Logger log = Logging.getLoggerInstance(WarmUp.class);
+
+    private static final WarmUp instance = new WarmUp();
+
+    public static WarmUp getInstance() {
+        return instance;
+    }
+
+    private Map<String, String> properties = Collections.emptyMap();
+    private volatile boolean up = false;
+    private volatile boolean delayReadiness = false;
+    private volatile boolean done = false;
+    private final Map<String, String> tasks = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile long started = -1;
+
+    {
+        EventManager.getInstance().addEventListener(this);
+    }
+
+    private WarmUp() {
+    }
+
+    @Override
+    public void notify(SystemEvent se) {
+        if (se instanceof SystemEvent.Up) {
+            properties = new UtilReader("mmsite.xml").getProperties();
+            delayReadiness = "true".equals(properties.get("delayReadiness"));
+            up = true;
+            if ("false".equals(properties.get("warmup"))) {
+                log.service("Warm-up of MMSite disabled");
+                done = true;
+            } else {
+                start();
+            }
+            IndexSnapshot.getInstance().schedule(getInt("snapshotInterval", 60));
+            StaticExport.getInstance().schedule(getInt("exportInterval", 0));
+        }
+    }
+
+    @Override
+    public int getWeight() {
+        return 0;
+    }
+
+    protected Cloud getCloud() {
+        return ContextProvider.getDefaultCloudContext().getCloud("mmbase");
+    }
+
+    private int getInt(String property, int def) {
+        String value = properties.get(property);
+        try {
+            return value == null || value.trim().isEmpty() ? def : Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            log.warn("Property " + property + " is no number: " + value);
+            return def;
+        }
+    }
+
+    protected synchronized void start() {
+        if (started > 0) return;
+        started = System.currentTimeMillis();
+        int threads = Math.max(1, getInt("warmupThreads", 4));
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "MMSite warm-up " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        final boolean restored = IndexSnapshot.getInstance().restore();
+        final long since = IndexSnapshot.getInstance().getRestored();
+
+        Map<String, Callable<String>> work = new LinkedHashMap<>();
+        work.put("pages", () -> {
+            if (restored) {
+                TemplateCache.getInstance().reload();
+                PageIndex.getInstance().reload();
+                return TemplateCache.getInstance().size() + " templates, reconciled";
+            }
+            PageIndex.getInstance().load();
+            return TemplateCache.getInstance().size() + " templates";
+        });
+        work.put("portals", () -> {
+            if (restored) {
+                PortalIndex.getInstance().reload();
+                return "hierarchy, reconciled";
+            }
+            PortalIndex.getInstance().load();
+            return "hierarchy";
+        });
+        work.put("articles", () -> {
+            if (restored && ArticleIndex.getInstance().getNumbers() != null) {
+                ArticleIndex.getInstance().reconcile(since);
+                return ArticleIndex.getInstance().size() + " shown, reconciled";
+            }
+            ArticleIndex.getInstance().load();
+            return ArticleIndex.getInstance().size() + " shown";
+        });
+        work.put("article urls", () -> {
+            ArticlesUrlConverter converter = ArticlesUrlConverter.getInstance();
+            if (converter == null) {
+                return "no converter";
+            }
+            return converter.warmUp(getCloud(), NiceUrlCache.getInstance().maxSize()) + " urls";
+        });
+        work.put("translations", this::warmUpTranslations);
+
+        running.set(work.size());
+        for (Map.Entry<String, Callable<String>> e : work.entrySet()) {
+            String name = e.getKey();
+            tasks.put(name, "waiting");
+            executor.execute(() -> {
+                long start = System.currentTimeMillis();
+                tasks.put(name, "running");
+                try {
+                    tasks.put(name, "done: " + e.getValue().call() + " in " + (System.currentTimeMillis() - start) + " ms");
+                } catch (Exception ex) {
+                    log.warn("Warm-up of " + name + " failed: " + ex.getMessage(), ex);
+                    tasks.put(name, "failed: " + ex.getMessage());
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        done = true;
+                        log.service("Warm-up of MMSite done in " + (System.currentTimeMillis() - started) + " ms: " + tasks);
+                        try {
+                            IndexSnapshot.getInstance().write();
+                        } catch (Exception ioe) {
+                            log.warn("Could not write snapshot: " + ioe.getMessage(), ioe);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        log.service("Warming up MMSite with " + threads + " threads");
+    }
+
+    /**
+     * Finds the translations of the pages and of the most recent articles in all display locales.
+     */
+    private String warmUpTranslations() {
+        List<Locale> locales = LocaleUtil.getInstance().getDisplayLocales();
+        if (locales.isEmpty()) {
+            return "not multilanguage";
+        }
+        Cloud cloud = getCloud();
+        int max = TranslationCache.getInstance().maxSize() / (2 * locales.size());
+        int count = 0;
+        for (String builder : new String[] {"pages", "articles"}) {
+            if (! cloud.hasNodeManager(builder) || ! cloud.hasNodeManager(builder + "_translations")) {
+                continue;
+            }
+            NodeManager nm = cloud.getNodeManager(builder);
+            NodeQuery query = nm.createQuery();
+            query.addSortOrder(query.getStepField(nm.getField("number")), SortOrder.ORDER_DESCENDING);
+            query.setMaxNumber(max);
+            NodeList nodes = nm.getList(query);
+            for (int i = 0; i < nodes.size(); i += 500) {
+                NodeList batch = nodes.subNodeList(i, Math.min(nodes.size(), i + 500));
+                for (Locale locale : locales) {
+                    NodeListTranslation.translate(batch, locale);
+                }
+            }
+            count += nodes.size();
+        }
+        return count + " nodes in " + locales;
+    }
+
+    /**
+     * Whether the site can be visited: MMBase is up and, when 'delayReadiness' is true, warm-up is done.
+     */
+    public boolean isReady() {
+        return up && (done || ! delayReadiness);
+    }
+
+    /**
+     * @return whether all warm-up tasks finished
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * The state of each task, f.e. 'running' or 'done: 1234 shown in 321 ms'.
+     */
+    public Map<String, String> getProgress() {
+        return Collections.unmodifiableMap(new TreeMap<>(tasks));
+    }
+
+}